@@ -0,0 +1,65 @@
+package isc.rabbitmq;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/// class APIBenchmark
+/// sendMessage and readMessage of API against in-process stub channel
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class APIBenchmark {
+
+    @Param({"64", "4096", "1048576"})
+    public int payloadSize;
+
+    private API _api;
+    private APIMessage _message;
+    private APIMessage _target;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] body = new byte[payloadSize];
+        Arrays.fill(body, (byte) 'x');
+
+        _message = new APIMessage("text/xml", 1);
+        _message.setHeader("system", "MySystem");
+        _message.setHeader("node-request", "test.server");
+        _message.setHeader("service-name", "getClient");
+        _message.MessageId = "00052";
+        _message.setTimestampMilliSeconds(System.currentTimeMillis());
+        _message.setBodyStream(body);
+
+        StubConnection stub = new StubConnection();
+        stub.setResponse(_message, 1000);
+
+        _api = new API(stub.connection(), "Test", null);
+        _target = new APIMessage();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        _api.close();
+    }
+
+    @Benchmark
+    public boolean sendMessage() throws Exception {
+        _api.sendMessage(_message);
+        return _api.isLastError();
+    }
+
+    @Benchmark
+    public APIMessage readMessage() throws Exception {
+        return _api.readMessage();
+    }
+
+    @Benchmark
+    public boolean readMessageInto() throws Exception {
+        return _api.readMessageInto(_target);
+    }
+}
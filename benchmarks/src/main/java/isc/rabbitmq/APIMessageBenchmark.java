@@ -0,0 +1,95 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/// class APIMessageBenchmark
+/// Construction, headers, properties and body encode/decode of APIMessage for several payload sizes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class APIMessageBenchmark {
+
+    @Param({"64", "4096", "1048576"})
+    public int payloadSize;
+
+    private String _bodyString;
+    private byte[] _bodyBytes;
+    private APIMessage _message;
+
+    @Setup
+    public void setup() throws Exception {
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        _bodyString = new String(chars);
+        _bodyBytes = _bodyString.getBytes(StandardCharsets.UTF_8);
+
+        _message = newMessage();
+    }
+
+    private APIMessage newMessage() throws Exception {
+        APIMessage message = new APIMessage("text/xml", 1);
+        message.setHeader("system", "MySystem");
+        message.setHeader("node-request", "test.server");
+        message.setHeader("service-name", "getClient");
+        message.MessageId = "00052";
+        message.setTimestampMilliSeconds(System.currentTimeMillis());
+        message.setBodyStream(_bodyBytes);
+
+        return message;
+    }
+
+    @Benchmark
+    public APIMessage construct() throws Exception {
+        return new APIMessage("text/xml", 1);
+    }
+
+    @Benchmark
+    public APIMessage setHeader() throws Exception {
+        APIMessage message = _message;
+        message.setHeader("service-name", "getClient");
+
+        return message;
+    }
+
+    @Benchmark
+    public Map<String, String> getHeadersAsMap() throws Exception {
+        return _message.getHeadersAsMap();
+    }
+
+    @Benchmark
+    public String[] getHeaders() throws Exception {
+        return _message.getHeaders();
+    }
+
+    @Benchmark
+    public AMQP.BasicProperties createProperties() throws Exception {
+        return _message.createProperties();
+    }
+
+    @Benchmark
+    public String messageToString() {
+        return _message.toString();
+    }
+
+    @Benchmark
+    public byte[] encodeBody() throws Exception {
+        _message.setBodyString(_bodyString);
+        return _message.getBodyStream();
+    }
+
+    @Benchmark
+    public String decodeBody() throws Exception {
+        // new body array drops decoded string cached by message
+        _message.setBodyStream(_bodyBytes);
+        return _message.getBodyString();
+    }
+}
@@ -0,0 +1,64 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.*;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// class StubConnection
+/// In-process stub of Connection and Channel without network: basicPublish only counts messages,
+/// basicGet returns the same prepared response. Measures cost of API itself.
+final class StubConnection {
+    private final AtomicLong _published = new AtomicLong(0);
+    private final AtomicLong _deliveryTag = new AtomicLong(0);
+
+    private volatile AMQP.BasicProperties _props = new AMQP.BasicProperties();
+    private volatile byte[] _body = APIMessage.EMPTY_BODY;
+    private volatile int _messageCount = 1;
+
+    /// Parameters: APIMessage message - returned by every basicGet
+    void setResponse(APIMessage message, int messageCount) throws Exception {
+        _props = message.createProperties();
+        _body = message.getBodyStream();
+        _messageCount = messageCount;
+    }
+
+    /// Return: count of published messages
+    long getPublished() {
+        return _published.get();
+    }
+
+    /// Return: Connection which creates stub channels
+    Connection connection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "createChannel": return channel();
+                case "isOpen": return true;
+                default: return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private Channel channel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "basicPublish":
+                    _published.incrementAndGet();
+                    return null;
+                case "basicGet":
+                    Envelope envelope = new Envelope(_deliveryTag.incrementAndGet(), false, "", (String) args[0]);
+                    return new GetResponse(envelope, _props, _body, _messageCount);
+                case "getNextPublishSeqNo": return _published.get() + 1;
+                case "isOpen": return true;
+                default: return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+}
@@ -0,0 +1,182 @@
+package isc.rabbitmq.loadtest;
+
+import com.rabbitmq.client.impl.AMQImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/// class BrokerChannel
+/// Channel of stand-in broker: prefetch, delivered and not acked messages, consumers and publisher confirms.
+/// Prefetch is applied to every consumer started after basic.qos, as RabbitMQ does for basic.qos with global = false.
+/// Deliveries come from threads of other connections, so state is guarded by this.
+class BrokerChannel {
+    /// Delivered message waiting for ack
+    private static class Unacked {
+        final BrokerQueue queue;
+        final BrokerQueue.Message message;
+        final BrokerQueue.Consumer consumer;
+
+        Unacked(BrokerQueue queue, BrokerQueue.Message message, BrokerQueue.Consumer consumer) {
+            this.queue = queue;
+            this.message = message;
+            this.consumer = consumer;
+        }
+    }
+
+    final BrokerConnection connection;
+    final int number;
+
+    // guarded by this
+    private int _prefetch = 0;
+    private long _nextDeliveryTag = 1;
+    private final Map<Long, Unacked> _unacked = new LinkedHashMap<>();
+    private final Map<String, BrokerQueue> _consumers = new HashMap<>();
+    private String _replyConsumerTag = null;
+
+    // used by reader thread of connection only
+    boolean confirm = false;
+    long publishSeqNo = 0;
+    boolean closing = false;
+
+    BrokerChannel(BrokerConnection connection, int number) {
+        this.connection = connection;
+        this.number = number;
+    }
+
+    /// Address of Direct Reply-to for this channel
+    String replyAddress() {
+        return StandInBroker.REPLY_TO + "." + connection.id + "." + number;
+    }
+
+    synchronized void setPrefetch(int prefetch) {
+        _prefetch = prefetch;
+    }
+
+    synchronized int getPrefetch() {
+        return _prefetch;
+    }
+
+    /// Return: true if consumer may get one more message
+    synchronized boolean hasCapacity(BrokerQueue.Consumer consumer) {
+        return consumer.noAck || consumer.prefetch == 0 || consumer.unacked < consumer.prefetch;
+    }
+
+    synchronized void addConsumer(String tag, BrokerQueue queue) {
+        _consumers.put(tag, queue);
+    }
+
+    synchronized boolean hasConsumer(String tag) {
+        return _consumers.containsKey(tag) || tag.equals(_replyConsumerTag);
+    }
+
+    synchronized void setReplyConsumer(String tag) {
+        _replyConsumerTag = tag;
+    }
+
+    synchronized String getReplyConsumer() {
+        return _replyConsumerTag;
+    }
+
+    /// Return: queue of cancelled consumer, null for consumer of Direct Reply-to or unknown consumer
+    synchronized BrokerQueue removeConsumer(String tag) {
+        if (tag.equals(_replyConsumerTag)) _replyConsumerTag = null;
+
+        return _consumers.remove(tag);
+    }
+
+    /// Write basic.deliver, called under lock of queue
+    void deliver(BrokerQueue.Consumer consumer, BrokerQueue queue, BrokerQueue.Message message) throws IOException {
+        long tag;
+        synchronized (this) {
+            tag = _nextDeliveryTag++;
+            if (!consumer.noAck) {
+                _unacked.put(tag, new Unacked(queue, message, consumer));
+                consumer.unacked++;
+            }
+        }
+
+        connection.send(number, new AMQImpl.Basic.Deliver(consumer.tag, tag, message.redelivered, message.exchange, message.routingKey), message.props, message.body);
+    }
+
+    /// Write reply of Direct Reply-to, it is never acked
+    void deliverReply(BrokerQueue.Message message) throws IOException {
+        String tag;
+        long deliveryTag;
+        synchronized (this) {
+            tag = _replyConsumerTag;
+            deliveryTag = _nextDeliveryTag++;
+        }
+
+        if (tag != null) connection.send(number, new AMQImpl.Basic.Deliver(tag, deliveryTag, false, message.exchange, message.routingKey), message.props, message.body);
+    }
+
+    /// Write basic.get-ok
+    void deliverGet(BrokerQueue queue, BrokerQueue.Message message, boolean noAck) throws IOException {
+        long tag;
+        synchronized (this) {
+            tag = _nextDeliveryTag++;
+            if (!noAck) _unacked.put(tag, new Unacked(queue, message, null));
+        }
+
+        connection.send(number, new AMQImpl.Basic.GetOk(tag, message.redelivered, message.exchange, message.routingKey, queue.size()), message.props, message.body);
+    }
+
+    /// Parameters: long deliveryTag, boolean multiple, boolean ack - false for nack/reject, boolean requeue
+    /// Return: false if delivery tag is unknown
+    boolean settle(long deliveryTag, boolean multiple, boolean ack, boolean requeue) {
+        List<Unacked> settled = new ArrayList<>();
+
+        synchronized (this) {
+            if (multiple) {
+                for (Iterator<Map.Entry<Long, Unacked>> i = _unacked.entrySet().iterator(); i.hasNext(); ) {
+                    Map.Entry<Long, Unacked> item = i.next();
+                    if (deliveryTag != 0 && item.getKey() > deliveryTag) break;
+
+                    settled.add(item.getValue());
+                    if (item.getValue().consumer != null) item.getValue().consumer.unacked--;
+                    i.remove();
+                }
+            } else {
+                Unacked unacked = _unacked.remove(deliveryTag);
+                if (unacked == null) return false;
+                settled.add(unacked);
+                if (unacked.consumer != null) unacked.consumer.unacked--;
+            }
+        }
+
+        // lock of channel is released, queues may deliver again
+        Set<BrokerQueue> queues = new LinkedHashSet<>();
+        for (Unacked unacked : settled) {
+            if (!ack && requeue) unacked.queue.requeue(unacked.message);
+            queues.add(unacked.queue);
+        }
+        for (BrokerQueue queue : queues) queue.dispatch();
+
+        return true;
+    }
+
+    /// Queues consumed by channel
+    synchronized List<BrokerQueue> consumedQueues() {
+        return new ArrayList<>(_consumers.values());
+    }
+
+    /// Cancel consumers and requeue not acked messages, used by close of channel or connection
+    void close() {
+        List<Map.Entry<String, BrokerQueue>> consumers;
+        synchronized (this) {
+            consumers = new ArrayList<>(_consumers.entrySet());
+            _consumers.clear();
+            _replyConsumerTag = null;
+        }
+
+        for (Map.Entry<String, BrokerQueue> consumer : consumers) consumer.getValue().removeConsumer(this, consumer.getKey());
+        settle(0, true, false, true);
+    }
+}
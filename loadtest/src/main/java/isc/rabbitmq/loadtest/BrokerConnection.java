@@ -0,0 +1,236 @@
+package isc.rabbitmq.loadtest;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.AMQCommand;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Frame;
+import com.rabbitmq.client.impl.LongStringHelper;
+import com.rabbitmq.client.impl.Method;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/// class BrokerConnection
+/// Connection of stand-in broker: reader thread assembles commands from frames and handles them,
+/// frames to client are written by any thread under lock of output.
+class BrokerConnection implements Runnable {
+    private static final int CHANNEL_MAX = 2047;
+    private static final int FRAME_MAX = 131072;
+
+    final int id;
+    private final StandInBroker _broker;
+    private final Socket _socket;
+    private final DataInputStream _in;
+    private final DataOutputStream _out;
+
+    // guarded by _out
+    private int _frameMax = FRAME_MAX;
+
+    private final Map<Integer, BrokerChannel> _channels = new ConcurrentHashMap<>();
+    private final Map<Integer, AMQCommand> _commands = new HashMap<>();
+    private volatile ScheduledFuture<?> _heartbeat = null;
+    private volatile boolean _closed = false;
+
+    BrokerConnection(StandInBroker broker, Socket socket, int id) throws IOException {
+        this.id = id;
+        _broker = broker;
+        _socket = socket;
+        _socket.setTcpNoDelay(true);
+        _in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        _out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    @Override
+    public void run() {
+        try {
+            handshake();
+
+            while (!_closed) {
+                Frame frame = Frame.readFrom(_in);
+                if (frame == null) continue;
+                if (frame.type == AMQP.FRAME_HEARTBEAT) continue;
+
+                AMQCommand command = _commands.computeIfAbsent(frame.channel, channel -> new AMQCommand());
+                if (!command.handleFrame(frame)) continue;
+
+                _commands.remove(frame.channel);
+                if (frame.channel == 0) {
+                    handleConnection(command.getMethod());
+                } else {
+                    handleChannel(frame.channel, command);
+                }
+            }
+        } catch (Exception ex) {
+            // socket is closed by client, by dropConnections or broken
+        } finally {
+            cleanup();
+        }
+    }
+
+    /// Write method with optional content, body is split to frames by negotiated frame size
+    void send(int channel, Method method, AMQP.BasicProperties props, byte[] body) throws IOException {
+        synchronized (_out) {
+            method.toFrame(channel).writeTo(_out);
+
+            if (props != null) {
+                props.toFrame(channel, body.length).writeTo(_out);
+
+                int chunk = (_frameMax > 0 ? _frameMax - AMQCommand.EMPTY_FRAME_SIZE : body.length);
+                for (int offset = 0; offset < body.length; offset += chunk) {
+                    Frame.fromBodyFragment(channel, body, offset, Math.min(chunk, body.length - offset)).writeTo(_out);
+                }
+            }
+
+            _out.flush();
+        }
+    }
+
+    void send(int channel, Method method) throws IOException {
+        send(channel, method, null, null);
+    }
+
+    /// Return: count of open channels
+    int channelCount() {
+        return _channels.size();
+    }
+
+    /// Send connection.blocked or connection.unblocked
+    void sendBlocked(boolean blocked, String reason) {
+        try {
+            send(0, (blocked ? new AMQImpl.Connection.Blocked(reason) : new AMQImpl.Connection.Unblocked()));
+        } catch (IOException ex) {}
+    }
+
+    /// Close socket without close handshake, as network failure
+    void drop() {
+        _closed = true;
+
+        try {
+            _socket.close();
+        } catch (IOException ex) {}
+    }
+
+    private void handshake() throws IOException {
+        byte[] header = new byte[8];
+        _in.readFully(header);
+        if (header[0] != 'A' || header[1] != 'M' || header[2] != 'Q' || header[3] != 'P' || header[5] != 0 || header[6] != 9 || header[7] != 1) {
+            synchronized (_out) {
+                _out.write(new byte[] {'A', 'M', 'Q', 'P', 0, 0, 9, 1});
+                _out.flush();
+            }
+            throw new IOException("Unsupported protocol header");
+        }
+
+        Map<String, Object> capabilities = new HashMap<>();
+        capabilities.put("publisher_confirms", true);
+        capabilities.put("basic.nack", true);
+        capabilities.put("connection.blocked", true);
+        capabilities.put("consumer_cancel_notify", true);
+        capabilities.put("direct_reply_to", true);
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("product", LongStringHelper.asLongString("StandInBroker"));
+        properties.put("version", LongStringHelper.asLongString("0.9.1"));
+        properties.put("capabilities", capabilities);
+
+        send(0, new AMQImpl.Connection.Start(0, 9, properties, LongStringHelper.asLongString("PLAIN AMQPLAIN"), LongStringHelper.asLongString("en_US")));
+    }
+
+    private void handleConnection(Method method) throws IOException {
+        if (method instanceof AMQP.Connection.StartOk) {
+            send(0, new AMQImpl.Connection.Tune(CHANNEL_MAX, FRAME_MAX, 0));
+        } else if (method instanceof AMQP.Connection.TuneOk) {
+            AMQP.Connection.TuneOk tune = (AMQP.Connection.TuneOk) method;
+            synchronized (_out) {
+                _frameMax = tune.getFrameMax();
+            }
+
+            if (tune.getHeartbeat() > 0) {
+                long interval = Math.max(1, tune.getHeartbeat() * 1000L / 2);
+                _heartbeat = _broker.timer().scheduleAtFixedRate(this::sendHeartbeat, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        } else if (method instanceof AMQP.Connection.Open) {
+            send(0, new AMQImpl.Connection.OpenOk(""));
+        } else if (method instanceof AMQP.Connection.Close) {
+            send(0, new AMQImpl.Connection.CloseOk());
+            _closed = true;
+        } else if (method instanceof AMQP.Connection.CloseOk) {
+            _closed = true;
+        }
+    }
+
+    private void sendHeartbeat() {
+        try {
+            synchronized (_out) {
+                new Frame(AMQP.FRAME_HEARTBEAT, 0).writeTo(_out);
+                _out.flush();
+            }
+        } catch (IOException ex) {}
+    }
+
+    private void handleChannel(int number, AMQCommand command) throws Exception {
+        Method method = command.getMethod();
+
+        if (method instanceof AMQP.Channel.Open) {
+            _channels.put(number, new BrokerChannel(this, number));
+            send(number, new AMQImpl.Channel.OpenOk(LongStringHelper.asLongString("")));
+            return;
+        }
+
+        BrokerChannel channel = _channels.get(number);
+        if (channel == null) return;
+
+        if (method instanceof AMQP.Channel.CloseOk) {
+            closeChannel(channel);
+            return;
+        }
+
+        if (method instanceof AMQP.Channel.Close) {
+            closeChannel(channel);
+            send(number, new AMQImpl.Channel.CloseOk());
+            return;
+        }
+
+        // after channel error all methods are ignored until channel.close-ok
+        if (channel.closing) return;
+
+        _broker.injectLatency();
+
+        try {
+            _broker.handle(channel, method, (AMQP.BasicProperties) command.getContentHeader(), command.getContentBody());
+        } catch (StandInBroker.ChannelException ex) {
+            channel.closing = true;
+            send(number, new AMQImpl.Channel.Close(ex.code, ex.getMessage(), method.protocolClassId(), method.protocolMethodId()));
+        }
+    }
+
+    private void closeChannel(BrokerChannel channel) {
+        _channels.remove(channel.number);
+        _broker.removeReplyChannel(channel);
+        channel.close();
+    }
+
+    private void cleanup() {
+        _closed = true;
+
+        ScheduledFuture<?> heartbeat = _heartbeat;
+        if (heartbeat != null) heartbeat.cancel(false);
+
+        for (BrokerChannel channel : _channels.values()) closeChannel(channel);
+
+        try {
+            _socket.close();
+        } catch (IOException ex) {}
+
+        _broker.remove(this);
+    }
+}
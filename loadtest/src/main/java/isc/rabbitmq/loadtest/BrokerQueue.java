@@ -0,0 +1,138 @@
+package isc.rabbitmq.loadtest;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/// class BrokerQueue
+/// Queue of stand-in broker: ready messages in memory and consumers served round robin.
+/// Lock order is queue, then channel, then output of connection: delivery is written under lock of queue,
+/// so messages keep order; acks release lock of channel before queue is dispatched again.
+class BrokerQueue {
+    /// Message in queue
+    static class Message {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties props;
+        final byte[] body;
+        volatile boolean redelivered = false;
+
+        Message(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    /// Consumer registered by basic.consume
+    static class Consumer {
+        final String tag;
+        final BrokerChannel channel;
+        final boolean noAck;
+        final int prefetch;
+
+        // delivered and not acked messages, guarded by channel
+        int unacked = 0;
+
+        Consumer(String tag, BrokerChannel channel, boolean noAck, int prefetch) {
+            this.tag = tag;
+            this.channel = channel;
+            this.noAck = noAck;
+            this.prefetch = prefetch;
+        }
+    }
+
+    final String name;
+
+    // guarded by this
+    private final Deque<Message> _ready = new ArrayDeque<>();
+    private final List<Consumer> _consumers = new ArrayList<>();
+    private int _nextConsumer = 0;
+
+    BrokerQueue(String name) {
+        this.name = name;
+    }
+
+    synchronized int size() {
+        return _ready.size();
+    }
+
+    synchronized int consumerCount() {
+        return _consumers.size();
+    }
+
+    void publish(Message message) {
+        synchronized (this) {
+            _ready.addLast(message);
+        }
+
+        dispatch();
+    }
+
+    /// Message returned by nack, reject, recover or close of channel goes to head of queue
+    void requeue(Message message) {
+        message.redelivered = true;
+
+        synchronized (this) {
+            _ready.addFirst(message);
+        }
+
+        dispatch();
+    }
+
+    /// Return: first ready message or null, used by basic.get
+    synchronized Message poll() {
+        return _ready.pollFirst();
+    }
+
+    synchronized int purge() {
+        int count = _ready.size();
+        _ready.clear();
+
+        return count;
+    }
+
+    void addConsumer(Consumer consumer) {
+        synchronized (this) {
+            _consumers.add(consumer);
+        }
+
+        dispatch();
+    }
+
+    synchronized void removeConsumer(BrokerChannel channel, String tag) {
+        _consumers.removeIf(consumer -> consumer.channel == channel && (tag == null || consumer.tag.equals(tag)));
+    }
+
+    /// Deliver ready messages to consumers with free prefetch
+    synchronized void dispatch() {
+        while (!_ready.isEmpty() && !_consumers.isEmpty()) {
+            Consumer consumer = nextConsumer();
+            if (consumer == null) return;
+
+            Message message = _ready.pollFirst();
+            try {
+                consumer.channel.deliver(consumer, this, message);
+            } catch (IOException ex) {
+                // connection is dropped: message with ack is requeued by cleanup of channel, without ack it is kept here
+                _consumers.remove(consumer);
+                if (consumer.noAck) _ready.addFirst(message);
+            }
+        }
+    }
+
+    // guarded by this
+    private Consumer nextConsumer() {
+        for (int i = 0; i < _consumers.size(); i++) {
+            Consumer consumer = _consumers.get(_nextConsumer++ % _consumers.size());
+            if (consumer.channel.hasCapacity(consumer)) return consumer;
+        }
+
+        return null;
+    }
+}
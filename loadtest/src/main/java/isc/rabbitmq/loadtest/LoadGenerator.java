@@ -0,0 +1,184 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// class LoadGenerator
+/// Load of send and read paths of API: sender threads publish for given time, then reader threads drain queue.
+/// Prints messages per second and latency percentiles (microseconds) from statistics of API.
+/// Without host uses embedded StandInBroker, which can inject faults in the middle of send phase.
+///
+/// Options by format key=value:
+///   host, port, user, pass, vhost - broker (default: embedded stand-in broker)
+///   queue=loadtest, threads=4, seconds=10, size=1024 (body bytes)
+///   read=consumer|get, prefetch=256
+///   latency=0 (milliseconds of every broker command, embedded broker only)
+///   fault=none|block|drop (in the middle of send phase for 1 second, embedded broker only)
+public class LoadGenerator {
+    private static final long FAULT_DURATION = 1000;
+    private static final long READ_IDLE_TIMEOUT = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) throw new IllegalArgumentException("Option " + arg + " is not key=value");
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        String queue = options.getOrDefault("queue", "loadtest");
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int size = Integer.parseInt(options.getOrDefault("size", "1024"));
+        int prefetch = Integer.parseInt(options.getOrDefault("prefetch", "256"));
+        boolean consumer = !"get".equals(options.getOrDefault("read", "consumer"));
+        String fault = options.getOrDefault("fault", "none");
+
+        StandInBroker broker = null;
+        String host = options.get("host");
+        int port = Integer.parseInt(options.getOrDefault("port", "5672"));
+
+        if (host == null) {
+            broker = new StandInBroker(0);
+            broker.declareQueue(queue);
+            broker.setLatency(Long.parseLong(options.getOrDefault("latency", "0")));
+
+            host = "localhost";
+            port = broker.getPort();
+            System.out.println("Embedded stand-in broker on port " + port);
+        } else if (!"none".equals(fault)) {
+            throw new IllegalArgumentException("Faults are injected only by embedded broker");
+        }
+
+        // resilient API survives dropped connection
+        API api = new API(host, port, options.getOrDefault("user", "guest"), options.getOrDefault("pass", "guest"), options.getOrDefault("vhost", "/"), queue, "", !"none".equals(fault));
+        if (api.isLastError()) throw new IllegalStateException(api.getLastErrorMessage());
+        api.setChannelPool(threads, 1000);
+
+        try {
+            long sent = send(api, threads, seconds, size, broker, fault);
+            api.resetStats();
+            read(api, threads, sent, consumer, prefetch);
+        } finally {
+            api.close();
+            if (broker != null) broker.close();
+        }
+    }
+
+    private static long send(API api, int threads, int seconds, int size, StandInBroker broker, String fault) throws Exception {
+        byte[] body = new byte[size];
+        Arrays.fill(body, (byte) 'x');
+
+        AtomicLong sent = new AtomicLong(0);
+        AtomicLong errors = new AtomicLong(0);
+        long started = System.nanoTime();
+        long deadline = started + seconds * 1000000000L;
+
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread sender = new Thread(() -> {
+                try {
+                    APIMessage message = new APIMessage("text/xml", 1);
+                    message.setHeader("system", "LoadGenerator");
+                    message.setBodyStream(body);
+
+                    while (System.nanoTime() < deadline) {
+                        api.sendMessage(message);
+                        (api.isLastError() ? errors : sent).incrementAndGet();
+                    }
+                } catch (Exception ex) {
+                    errors.incrementAndGet();
+                }
+            }, "LoadGenerator-sender-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+
+        if (broker != null && !"none".equals(fault)) {
+            Thread.sleep(seconds * 1000L / 2);
+            injectFault(broker, fault);
+        }
+
+        for (Thread sender : senders) sender.join();
+        double elapsed = (System.nanoTime() - started) / 1e9;
+
+        System.out.println();
+        System.out.println("Send: " + sent.get() + " messages, " + errors.get() + " errors, " + Math.round(sent.get() / elapsed) + " msg/s");
+        printLatency(api, "SendLatency");
+
+        // messages of outbox are published after recovery of dropped connection
+        for (int i = 0; i < 100 && api.getOutboxCount() > 0; i++) Thread.sleep(100);
+
+        return sent.get();
+    }
+
+    private static void read(API api, int threads, long expected, boolean consumer, int prefetch) throws Exception {
+        if (consumer && api.startConsumer(prefetch, 100)) throw new IllegalStateException(api.getLastErrorMessage());
+
+        AtomicLong read = new AtomicLong(0);
+        AtomicLong errors = new AtomicLong(0);
+        long started = System.nanoTime();
+
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    APIMessage message = new APIMessage();
+                    long idle = System.currentTimeMillis();
+
+                    while (read.get() < expected && System.currentTimeMillis() - idle < READ_IDLE_TIMEOUT) {
+                        if (api.readMessageInto(message)) {
+                            read.incrementAndGet();
+                            idle = System.currentTimeMillis();
+                        } else if (api.isLastError()) {
+                            errors.incrementAndGet();
+                        } else if (!consumer) {
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (Exception ex) {
+                    errors.incrementAndGet();
+                }
+            }, "LoadGenerator-reader-" + i);
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (Thread reader : readers) reader.join();
+        double elapsed = (System.nanoTime() - started) / 1e9;
+
+        System.out.println();
+        System.out.println("Read (" + (consumer ? "consumer" : "basicGet") + "): " + read.get() + " of " + expected + " messages, " + errors.get() + " errors, " + Math.round(read.get() / elapsed) + " msg/s");
+        printLatency(api, "ReadLatency");
+
+        if (consumer) api.stopConsumer();
+    }
+
+    private static void injectFault(StandInBroker broker, String fault) throws InterruptedException {
+        System.out.println("Fault: " + fault);
+
+        switch (fault) {
+            case "block":
+                broker.setBlocked(true, "low on memory");
+                Thread.sleep(FAULT_DURATION);
+                broker.setBlocked(false, "");
+                break;
+            case "drop":
+                broker.dropConnections();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown fault " + fault + ", use none, block or drop");
+        }
+    }
+
+    private static void printLatency(API api, String name) {
+        for (String stat : api.getStats()) if (stat.startsWith(name)) System.out.println("  " + stat.substring(name.length()));
+    }
+}
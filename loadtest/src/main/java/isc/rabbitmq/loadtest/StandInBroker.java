@@ -0,0 +1,416 @@
+package isc.rabbitmq.loadtest;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Method;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// class StandInBroker
+/// Embeddable in-JVM stand-in of RabbitMQ for load and regression testing of API without real broker.
+/// Speaks enough AMQP 0-9-1 (frames are encoded by classes of amqp-client) for connection handshake, declare,
+/// bind, publish with confirms, get, consume with prefetch, ack/nack/reject and Direct Reply-to.
+/// Messages are kept in memory, one virtual host, credentials are not checked.
+/// Faults: latency of every command, connection.blocked with paused publishes, nack of publishes, drop of all sockets.
+public class StandInBroker implements AutoCloseable {
+    static final String REPLY_TO = "amq.rabbitmq.reply-to";
+
+    /// Error closing channel, code is AMQP reply code
+    static class ChannelException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ChannelException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /// Binding of queue to exchange
+    private static class Binding {
+        final String queue;
+        final String key;
+
+        Binding(String queue, String key) {
+            this.queue = queue;
+            this.key = key;
+        }
+    }
+
+    private final ServerSocket _server;
+    private final Thread _acceptor;
+    private final ScheduledExecutorService _timer;
+    private volatile boolean _closed = false;
+
+    private final Map<String, BrokerQueue> _queues = new ConcurrentHashMap<>();
+    private final Map<String, String> _exchanges = new ConcurrentHashMap<>();
+    private final Map<String, List<Binding>> _bindings = new ConcurrentHashMap<>();
+    private final Map<String, BrokerChannel> _replyChannels = new ConcurrentHashMap<>();
+    private final Set<BrokerConnection> _connections = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger _nextConnection = new AtomicInteger(0);
+    private final AtomicLong _nextName = new AtomicLong(0);
+    private final AtomicLong _published = new AtomicLong(0);
+
+    // faults
+    private volatile long _latency = 0;
+    private final Object _blockLock = new Object();
+    private volatile boolean _blocked = false;
+    private volatile boolean _nackPublishes = false;
+
+    /// Parameters: int port - TCP port on loopback interface, 0 - any free port
+    /// Port of closed broker may be used by new one at once, so tests can stop and restart broker
+    public StandInBroker(int port) throws IOException {
+        _server = new ServerSocket();
+        _server.setReuseAddress(true);
+        _server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+
+        for (String exchange : new String[] {"", "amq.direct"}) _exchanges.put(exchange, "direct");
+        _exchanges.put("amq.fanout", "fanout");
+        _exchanges.put("amq.topic", "topic");
+        _exchanges.put("amq.headers", "headers");
+
+        _timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "StandInBroker-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        _acceptor = new Thread(this::accept, "StandInBroker-acceptor");
+        _acceptor.setDaemon(true);
+        _acceptor.start();
+    }
+
+    /// Return: port of broker
+    public int getPort() {
+        return _server.getLocalPort();
+    }
+
+    /// Declare queue before clients connect, for example for queueDeclarePassive in constructor of API
+    public void declareQueue(String name) {
+        _queues.computeIfAbsent(name, BrokerQueue::new);
+    }
+
+    /// Declare exchange of type direct, fanout, topic or headers
+    public void declareExchange(String name, String type) {
+        _exchanges.putIfAbsent(name, type);
+    }
+
+    /// Return: count of ready (not delivered) messages of queue, -1 if queue does not exist
+    public int getQueueSize(String name) {
+        BrokerQueue queue = _queues.get(name);
+        return (queue != null ? queue.size() : -1);
+    }
+
+    /// Return: count of published messages
+    public long getPublished() {
+        return _published.get();
+    }
+
+    /// Return: count of open connections
+    public int getConnectionCount() {
+        return _connections.size();
+    }
+
+    /// Return: count of open channels of all connections
+    public int getChannelCount() {
+        int count = 0;
+        for (BrokerConnection connection : _connections) count += connection.channelCount();
+
+        return count;
+    }
+
+    /// Fault: every command of clients is delayed by latency (milliseconds)
+    public void setLatency(long latency) {
+        _latency = Math.max(latency, 0);
+    }
+
+    /// Fault: send connection.blocked (or unblocked) to all clients, publishes are not handled while broker is blocked
+    public void setBlocked(boolean blocked, String reason) {
+        synchronized (_blockLock) {
+            _blocked = blocked;
+            _blockLock.notifyAll();
+        }
+
+        for (BrokerConnection connection : _connections) connection.sendBlocked(blocked, reason);
+    }
+
+    /// Fault: publishes are dropped and confirmed by basic.nack, as broker failing to store messages
+    public void setNackPublishes(boolean nack) {
+        _nackPublishes = nack;
+    }
+
+    /// Fault: close sockets of all clients without close handshake, as network failure
+    public void dropConnections() {
+        for (BrokerConnection connection : _connections) connection.drop();
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+
+        try {
+            _server.close();
+        } catch (IOException ex) {}
+
+        // socket blocked in accept is released when acceptor wakes up, then port may be bound again
+        try {
+            _acceptor.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        dropConnections();
+        setBlocked(false, "");
+        _timer.shutdownNow();
+    }
+
+    ScheduledExecutorService timer() {
+        return _timer;
+    }
+
+    void remove(BrokerConnection connection) {
+        _connections.remove(connection);
+    }
+
+    void removeReplyChannel(BrokerChannel channel) {
+        _replyChannels.remove(channel.replyAddress(), channel);
+    }
+
+    void injectLatency() throws InterruptedException {
+        long latency = _latency;
+        if (latency > 0) Thread.sleep(latency);
+    }
+
+    private void accept() {
+        while (!_closed) {
+            try {
+                Socket socket = _server.accept();
+                BrokerConnection connection = new BrokerConnection(this, socket, _nextConnection.incrementAndGet());
+                _connections.add(connection);
+
+                Thread thread = new Thread(connection, "StandInBroker-connection-" + connection.id);
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ex) {
+                // server socket is closed
+            }
+        }
+    }
+
+    /// Handle method of channel, called by reader thread of connection
+    void handle(BrokerChannel channel, Method method, AMQP.BasicProperties props, byte[] body) throws Exception {
+        int number = channel.number;
+        BrokerConnection connection = channel.connection;
+
+        if (method instanceof AMQP.Basic.Publish) {
+            publish(channel, (AMQP.Basic.Publish) method, props, body);
+        } else if (method instanceof AMQP.Basic.Ack) {
+            AMQP.Basic.Ack ack = (AMQP.Basic.Ack) method;
+            if (!channel.settle(ack.getDeliveryTag(), ack.getMultiple(), true, false)) throw unknownTag(ack.getDeliveryTag());
+        } else if (method instanceof AMQP.Basic.Nack) {
+            AMQP.Basic.Nack nack = (AMQP.Basic.Nack) method;
+            if (!channel.settle(nack.getDeliveryTag(), nack.getMultiple(), false, nack.getRequeue())) throw unknownTag(nack.getDeliveryTag());
+        } else if (method instanceof AMQP.Basic.Reject) {
+            AMQP.Basic.Reject reject = (AMQP.Basic.Reject) method;
+            if (!channel.settle(reject.getDeliveryTag(), false, false, reject.getRequeue())) throw unknownTag(reject.getDeliveryTag());
+        } else if (method instanceof AMQP.Basic.Get) {
+            AMQP.Basic.Get get = (AMQP.Basic.Get) method;
+            BrokerQueue queue = queue(get.getQueue());
+            BrokerQueue.Message message = queue.poll();
+
+            if (message == null) {
+                connection.send(number, new AMQImpl.Basic.GetEmpty(""));
+            } else {
+                channel.deliverGet(queue, message, get.getNoAck());
+            }
+        } else if (method instanceof AMQP.Basic.Consume) {
+            consume(channel, (AMQP.Basic.Consume) method);
+        } else if (method instanceof AMQP.Basic.Cancel) {
+            AMQP.Basic.Cancel cancel = (AMQP.Basic.Cancel) method;
+            BrokerQueue queue = channel.removeConsumer(cancel.getConsumerTag());
+            if (queue != null) queue.removeConsumer(channel, cancel.getConsumerTag());
+            if (!cancel.getNowait()) connection.send(number, new AMQImpl.Basic.CancelOk(cancel.getConsumerTag()));
+        } else if (method instanceof AMQP.Basic.Qos) {
+            channel.setPrefetch(((AMQP.Basic.Qos) method).getPrefetchCount());
+            connection.send(number, new AMQImpl.Basic.QosOk());
+            for (BrokerQueue queue : channel.consumedQueues()) queue.dispatch();
+        } else if (method instanceof AMQP.Basic.Recover) {
+            channel.settle(0, true, false, true);
+            connection.send(number, new AMQImpl.Basic.RecoverOk());
+        } else if (method instanceof AMQP.Confirm.Select) {
+            channel.confirm = true;
+            if (!((AMQP.Confirm.Select) method).getNowait()) connection.send(number, new AMQImpl.Confirm.SelectOk());
+        } else if (method instanceof AMQP.Queue.Declare) {
+            declareQueue(channel, (AMQP.Queue.Declare) method);
+        } else if (method instanceof AMQP.Queue.Bind) {
+            AMQP.Queue.Bind bind = (AMQP.Queue.Bind) method;
+            queue(bind.getQueue());
+            exchange(bind.getExchange());
+            _bindings.computeIfAbsent(bind.getExchange(), name -> new CopyOnWriteArrayList<>()).add(new Binding(bind.getQueue(), bind.getRoutingKey()));
+            if (!bind.getNowait()) connection.send(number, new AMQImpl.Queue.BindOk());
+        } else if (method instanceof AMQP.Queue.Unbind) {
+            AMQP.Queue.Unbind unbind = (AMQP.Queue.Unbind) method;
+            List<Binding> bindings = _bindings.get(unbind.getExchange());
+            if (bindings != null) bindings.removeIf(binding -> binding.queue.equals(unbind.getQueue()) && binding.key.equals(unbind.getRoutingKey()));
+            connection.send(number, new AMQImpl.Queue.UnbindOk());
+        } else if (method instanceof AMQP.Queue.Purge) {
+            AMQP.Queue.Purge purge = (AMQP.Queue.Purge) method;
+            int count = queue(purge.getQueue()).purge();
+            if (!purge.getNowait()) connection.send(number, new AMQImpl.Queue.PurgeOk(count));
+        } else if (method instanceof AMQP.Queue.Delete) {
+            AMQP.Queue.Delete delete = (AMQP.Queue.Delete) method;
+            BrokerQueue queue = _queues.remove(delete.getQueue());
+            if (!delete.getNowait()) connection.send(number, new AMQImpl.Queue.DeleteOk(queue != null ? queue.size() : 0));
+        } else if (method instanceof AMQP.Exchange.Declare) {
+            AMQP.Exchange.Declare declare = (AMQP.Exchange.Declare) method;
+            if (declare.getPassive()) {
+                exchange(declare.getExchange());
+            } else {
+                _exchanges.putIfAbsent(declare.getExchange(), declare.getType());
+            }
+            if (!declare.getNowait()) connection.send(number, new AMQImpl.Exchange.DeclareOk());
+        } else if (method instanceof AMQP.Exchange.Delete) {
+            AMQP.Exchange.Delete delete = (AMQP.Exchange.Delete) method;
+            _exchanges.remove(delete.getExchange());
+            _bindings.remove(delete.getExchange());
+            if (!delete.getNowait()) connection.send(number, new AMQImpl.Exchange.DeleteOk());
+        } else if (method instanceof AMQP.Channel.Flow) {
+            connection.send(number, new AMQImpl.Channel.FlowOk(((AMQP.Channel.Flow) method).getActive()));
+        } else {
+            throw new ChannelException(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - " + method.protocolMethodName() + " is not supported by stand-in broker");
+        }
+    }
+
+    private void publish(BrokerChannel channel, AMQP.Basic.Publish publish, AMQP.BasicProperties props, byte[] body) throws Exception {
+        // blocked broker does not read publishes, client waits as for real memory alarm
+        synchronized (_blockLock) {
+            while (_blocked && !_closed) _blockLock.wait();
+        }
+
+        if (_nackPublishes) {
+            if (channel.confirm) channel.connection.send(channel.number, new AMQImpl.Basic.Nack(++channel.publishSeqNo, false, false));
+            return;
+        }
+
+        String exchange = publish.getExchange();
+        String routingKey = publish.getRoutingKey();
+
+        if (REPLY_TO.equals(props.getReplyTo())) {
+            if (channel.getReplyConsumer() == null) throw new ChannelException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - fast reply consumer does not exist");
+            props = props.builder().replyTo(channel.replyAddress()).build();
+        }
+
+        BrokerQueue.Message message = new BrokerQueue.Message(exchange, routingKey, props, body);
+
+        if (exchange.isEmpty() && routingKey.startsWith(REPLY_TO + ".")) {
+            BrokerChannel replyChannel = _replyChannels.get(routingKey);
+            if (replyChannel != null) replyChannel.deliverReply(message);
+        } else {
+            String type = exchange(exchange);
+
+            if (exchange.isEmpty()) {
+                BrokerQueue queue = _queues.get(routingKey);
+                if (queue != null) queue.publish(message);
+            } else {
+                List<Binding> bindings = _bindings.get(exchange);
+                if (bindings != null) {
+                    for (Binding binding : bindings) {
+                        BrokerQueue queue = _queues.get(binding.queue);
+                        if (queue != null && matches(type, binding.key, routingKey)) queue.publish(message);
+                    }
+                }
+            }
+        }
+
+        _published.incrementAndGet();
+
+        // message is routed to memory, confirm at once
+        if (channel.confirm) channel.connection.send(channel.number, new AMQImpl.Basic.Ack(++channel.publishSeqNo, false));
+    }
+
+    private void consume(BrokerChannel channel, AMQP.Basic.Consume consume) throws Exception {
+        String tag = (consume.getConsumerTag().isEmpty() ? "amq.ctag-" + _nextName.incrementAndGet() : consume.getConsumerTag());
+        if (channel.hasConsumer(tag)) throw new ChannelException(AMQP.NOT_ALLOWED, "NOT_ALLOWED - attempt to reuse consumer tag '" + tag + "'");
+
+        if (REPLY_TO.equals(consume.getQueue())) {
+            if (!consume.getNoAck()) throw new ChannelException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - reply consumer cannot acknowledge");
+
+            channel.setReplyConsumer(tag);
+            _replyChannels.put(channel.replyAddress(), channel);
+            if (!consume.getNowait()) channel.connection.send(channel.number, new AMQImpl.Basic.ConsumeOk(tag));
+            return;
+        }
+
+        BrokerQueue queue = queue(consume.getQueue());
+        channel.addConsumer(tag, queue);
+
+        // consume-ok goes before first delivery
+        if (!consume.getNowait()) channel.connection.send(channel.number, new AMQImpl.Basic.ConsumeOk(tag));
+        queue.addConsumer(new BrokerQueue.Consumer(tag, channel, consume.getNoAck(), channel.getPrefetch()));
+    }
+
+    private void declareQueue(BrokerChannel channel, AMQP.Queue.Declare declare) throws Exception {
+        String name = (declare.getQueue().isEmpty() ? "amq.gen-" + _nextName.incrementAndGet() : declare.getQueue());
+
+        BrokerQueue queue = (declare.getPassive() ? queue(name) : _queues.computeIfAbsent(name, BrokerQueue::new));
+        if (!declare.getNowait()) channel.connection.send(channel.number, new AMQImpl.Queue.DeclareOk(name, queue.size(), queue.consumerCount()));
+    }
+
+    private BrokerQueue queue(String name) throws ChannelException {
+        BrokerQueue queue = _queues.get(name);
+        if (queue == null) throw new ChannelException(AMQP.NOT_FOUND, "NOT_FOUND - no queue '" + name + "' in vhost '/'");
+
+        return queue;
+    }
+
+    private String exchange(String name) throws ChannelException {
+        String type = _exchanges.get(name);
+        if (type == null) throw new ChannelException(AMQP.NOT_FOUND, "NOT_FOUND - no exchange '" + name + "' in vhost '/'");
+
+        return type;
+    }
+
+    private static ChannelException unknownTag(long deliveryTag) {
+        return new ChannelException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+    }
+
+    // headers exchange is routed as fanout
+    private static boolean matches(String type, String bindingKey, String routingKey) {
+        switch (type) {
+            case "fanout":
+            case "headers":
+                return true;
+            case "topic":
+                return matchesTopic(bindingKey.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+            default:
+                return bindingKey.equals(routingKey);
+        }
+    }
+
+    private static boolean matchesTopic(String[] pattern, int p, String[] words, int w) {
+        if (p == pattern.length) return w == words.length;
+
+        if (pattern[p].equals("#")) {
+            for (int i = w; i <= words.length; i++) if (matchesTopic(pattern, p + 1, words, i)) return true;
+            return false;
+        }
+
+        if (w == words.length) return false;
+        return (pattern[p].equals("*") || pattern[p].equals(words[w])) && matchesTopic(pattern, p + 1, words, w + 1);
+    }
+}
@@ -0,0 +1,103 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class AsyncSenderTest
+/// Async send returns ticket at once, ticket is completed by confirm once and full queue rejects message
+public class AsyncSenderTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.stopAsyncSender();
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void ticketsAreCompletedByConfirms() throws Exception {
+        assertFalse(_api.startAsyncSender(100, true));
+
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 50; i++) expected.add(send(i) + "=OK");
+
+        Set<String> completed = new HashSet<>();
+        waitFor(() -> {
+            for (String completion : _api.pollCompletions()) assertTrue("completed twice: " + completion, completed.add(completion));
+            return completed.size() == expected.size();
+        });
+
+        assertEquals(expected, completed);
+        assertEquals(0, _api.getAsyncPending());
+        assertEquals(50, _broker.getQueueSize("test"));
+    }
+
+    @Test
+    public void awaitTicketTakesItsOutcome() throws Exception {
+        assertFalse(_api.startAsyncSender(100, true));
+        long ticket = send(1);
+
+        assertTrue(_api.getLastErrorMessage(), _api.awaitTicket(ticket, 5000));
+
+        // outcome is taken once
+        assertFalse(_api.awaitTicket(ticket, 0));
+        assertTrue(_api.getLastErrorMessage().contains("unknown or already completed"));
+        assertEquals(0, _api.pollCompletions().length);
+    }
+
+    @Test
+    public void fullQueueRejectsMessage() throws Exception {
+        // I/O thread waits for slow broker, so messages stay in queue
+        _broker.setLatency(200);
+        assertFalse(_api.startAsyncSender(1, false));
+
+        long rejected = -1;
+        for (int i = 0; i < 5 && rejected != 0; i++) {
+            APIMessage message = new APIMessage();
+            message.setBodyString("m" + i);
+            rejected = _api.sendMessageAsync(message);
+        }
+
+        assertEquals(0, rejected);
+        assertTrue(_api.getLastErrorMessage().contains("is full"));
+    }
+
+    @Test
+    public void sendWithoutSenderFails() throws Exception {
+        APIMessage message = new APIMessage();
+        message.setBodyString("m");
+
+        assertEquals(0, _api.sendMessageAsync(message));
+        assertTrue(_api.getLastErrorMessage().contains("not started"));
+    }
+
+    private long send(int id) throws Exception {
+        APIMessage message = new APIMessage();
+        message.MessageId = String.valueOf(id);
+        message.setBodyString("m" + id);
+
+        long ticket = _api.sendMessageAsync(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertTrue(ticket > 0);
+
+        return ticket;
+    }
+}
@@ -0,0 +1,74 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class ChannelPoolTest
+/// Channels taken from pool are returned to the same pool when pool is replaced while senders are running
+public class ChannelPoolTest {
+    private static final int THREADS = 4;
+    private static final int MESSAGES = 2000;
+
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void replacedPoolClosesItsChannels() throws Exception {
+        int channels = _broker.getChannelCount();
+        AtomicInteger failed = new AtomicInteger(0);
+
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread sender = new Thread(() -> {
+                for (int i = 0; i < MESSAGES; i++) {
+                    try {
+                        APIMessage message = new APIMessage();
+                        message.setBodyString("m" + i);
+                        _api.sendMessage(message);
+                    } catch (Exception ex) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+
+        int[] sizes = {4, 2, 0, 3, 1};
+        for (int i = 0; senders.get(0).isAlive() && i < 1000; i++) {
+            assertFalse(_api.setChannelPool(sizes[i % sizes.length], 1000));
+            Thread.sleep(1);
+        }
+        for (Thread sender : senders) sender.join();
+
+        assertEquals(0, failed.get());
+        waitFor(() -> _broker.getPublished() == THREADS * MESSAGES);
+
+        // the last pool is closed too, so only channels of API itself are left
+        assertFalse(_api.setChannelPool(0, 0));
+        waitFor(() -> _broker.getChannelCount() == channels);
+    }
+}
@@ -0,0 +1,108 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class ChunkTest
+/// Large message is read by chunks, reading stops at timeout, idle transfers expire and chunks of failed transfer are dropped
+public class ChunkTest {
+    private static final int CHUNK = 1000;
+
+    private StandInBroker _broker;
+    private API _api;
+    private API _sender;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+        _sender = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _sender.close();
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void streamIsReassembled() throws Exception {
+        byte[] content = new byte[10 * CHUNK + 123];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+
+        APIMessage message = new APIMessage();
+        message.MessageId = "big";
+        assertEquals("big", _sender.sendChunkedStream("test", new ByteArrayInputStream(content), CHUNK, message));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        APIMessage read = _api.readChunkedToStream(out, 1000);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertEquals("big", read.MessageId);
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    public void readStopsAtTimeoutWhileChunksKeepComing() throws Exception {
+        // transfer is never complete and queue always has its next chunk
+        for (int seq = 0; seq < 1000; seq++) sendChunk("endless", seq, 10, 10);
+        waitFor(() -> _broker.getQueueSize("test") == 1000);
+
+        APIMessage read = _api.readChunkedToStream(new ByteArrayOutputStream(), 0);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertNull(read.MessageId);
+        assertTrue(_broker.getQueueSize("test") > 0);
+    }
+
+    @Test
+    public void chunksOfFailedTransferAreDropped() throws Exception {
+        sendChunk("broken", 0, CHUNK, CHUNK);
+        sendChunk("broken", 1, 2 * CHUNK, CHUNK);
+        sendChunk("broken", 2, CHUNK, CHUNK);
+
+        _api.readChunkedToStream(new ByteArrayOutputStream(), 500);
+        assertTrue(_api.isLastError());
+
+        // the rest of transfer does not start new one
+        APIMessage read = _api.readChunkedToStream(new ByteArrayOutputStream(), 300);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertNull(read.MessageId);
+        assertEquals(0, _api.getChunkTransfers().length);
+        assertEquals(0, _broker.getQueueSize("test"));
+    }
+
+    @Test
+    public void idleTransferExpiresWithoutNewChunks() throws Exception {
+        assertFalse(_api.setChunkDirectory("", 200));
+        sendChunk("idle", 0, CHUNK, CHUNK);
+
+        _api.readChunkedToStream(new ByteArrayOutputStream(), 100);
+        assertArrayEquals(new String[] {"idle=1/?"}, _api.getChunkTransfers());
+
+        Thread.sleep(300);
+        assertEquals(0, _api.getChunkTransfers().length);
+    }
+
+    /// Publish chunk by format of sendChunkedStream, it is never the last one
+    private void sendChunk(String id, int seq, int size, int length) throws Exception {
+        APIMessage chunk = new APIMessage();
+        chunk.MessageId = id + ":" + seq;
+        chunk.setHeader("x-chunk-id", id);
+        chunk.setHeaderLong("x-chunk-seq", seq);
+        chunk.setHeaderLong("x-chunk-size", size);
+        chunk.setBodyStream(new byte[length], 0, length);
+
+        _sender.sendMessageToQueue("test", chunk);
+        assertFalse(_sender.getLastErrorMessage(), _sender.isLastError());
+    }
+}
@@ -0,0 +1,132 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class CompressionTest
+/// Bodies above threshold are sent compressed and read back as sent, smaller bodies and bodies with ContentEncoding are sent as is
+public class CompressionTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    // reads bodies as they are kept by broker
+    private API _raw;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+        _raw = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _raw.close();
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void gzipBodyIsReadAsSent() throws Exception {
+        roundTrip("gzip");
+    }
+
+    @Test
+    public void deflateBodyIsReadAsSent() throws Exception {
+        roundTrip("deflate");
+    }
+
+    @Test
+    public void bodyAboveThresholdIsCompressed() throws Exception {
+        assertFalse(_api.setCompression("gzip", 100, 6, true));
+        APIMessage message = send(body(10000));
+
+        APIMessage raw = read(_raw);
+        assertEquals("gzip", raw.ContentEncoding);
+        assertTrue(raw.getBodyLength() < 1000);
+
+        // sent message itself is not changed
+        assertNull(message.ContentEncoding);
+        assertEquals(10000, message.getBodyLength());
+    }
+
+    @Test
+    public void bodyBelowThresholdIsSentAsIs() throws Exception {
+        assertFalse(_api.setCompression("gzip", 100, 6, true));
+        send(body(99));
+
+        APIMessage raw = read(_raw);
+        assertNull(raw.ContentEncoding);
+        assertArrayEquals(body(99), raw.getBodyStream());
+    }
+
+    @Test
+    public void bodyWithContentEncodingIsSentAsIs() throws Exception {
+        assertFalse(_api.setCompression("gzip", 0, 6, true));
+
+        APIMessage message = new APIMessage();
+        message.ContentEncoding = "identity";
+        message.setBodyStream(body(1000));
+        _api.sendMessage(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+
+        APIMessage raw = read(_raw);
+        assertEquals("identity", raw.ContentEncoding);
+        assertArrayEquals(body(1000), raw.getBodyStream());
+    }
+
+    @Test
+    public void bodyAboveDecompressedLimitIsNotRead() throws Exception {
+        assertFalse(_api.setCompression("gzip", 0, 6, true, 1000));
+        send(body(10000));
+        waitFor(() -> _broker.getQueueSize("test") == 1);
+
+        _api.readMessage();
+        assertTrue(_api.getLastErrorMessage().contains("larger than 1000 bytes"));
+    }
+
+    private void roundTrip(String encoding) throws Exception {
+        assertFalse(_api.setCompression(encoding, 100, 6, true));
+        send(body(100000));
+
+        APIMessage read = read(_api);
+        assertNull(read.ContentEncoding);
+        assertArrayEquals(body(100000), read.getBodyStream());
+    }
+
+    private APIMessage send(byte[] body) throws Exception {
+        APIMessage message = new APIMessage();
+        message.setBodyStream(body);
+        _api.sendMessage(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+
+        return message;
+    }
+
+    private APIMessage read(API api) throws Exception {
+        waitFor(() -> _broker.getQueueSize("test") == 1);
+
+        APIMessage message = api.readMessage();
+        assertFalse(api.getLastErrorMessage(), api.isLastError());
+
+        return message;
+    }
+
+    /// Return: compressible body of length
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) 'a');
+        for (int i = 0; i < length; i += 7) body[i] = (byte) ('0' + i % 10);
+
+        return body;
+    }
+}
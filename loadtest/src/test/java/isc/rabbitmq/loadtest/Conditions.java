@@ -0,0 +1,29 @@
+package isc.rabbitmq.loadtest;
+
+import static org.junit.Assert.fail;
+
+/// class Conditions
+/// Waiting for asynchronous effects of broker in tests
+public final class Conditions {
+    private static final long TIMEOUT = 5000;
+
+    public interface Condition {
+        boolean met() throws Exception;
+    }
+
+    private Conditions() {}
+
+    /// Wait until condition is met, test fails after 5 seconds
+    public static void waitFor(Condition condition) throws Exception {
+        waitFor(condition, TIMEOUT);
+    }
+
+    /// Wait until condition is met, test fails after timeout (milliseconds)
+    public static void waitFor(Condition condition, long timeout) throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > deadline) fail("Condition is not met in " + timeout + " milliseconds");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/// class ConfirmTest
+/// Batch publish returns confirm of every message, window smaller than batch is reused and nack is reported
+public class ConfirmTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void batchIsConfirmed() throws Exception {
+        boolean[] results = _api.sendMessages(batch(20));
+
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertEquals(20, results.length);
+        for (boolean ack : results) assertTrue(ack);
+        assertEquals(20, _broker.getQueueSize("test"));
+    }
+
+    @Test
+    public void batchLargerThanWindowIsConfirmed() throws Exception {
+        assertFalse(_api.setConfirmWindow(3, 5000));
+
+        boolean[] results = _api.sendMessages(batch(20));
+
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        for (boolean ack : results) assertTrue(ack);
+        assertEquals(20, _broker.getQueueSize("test"));
+    }
+
+    @Test
+    public void nackIsReported() throws Exception {
+        _broker.setNackPublishes(true);
+        boolean[] results = _api.sendMessages(batch(5));
+
+        assertTrue(_api.isLastError());
+        assertTrue(_api.getLastErrorMessage(), _api.getLastErrorMessage().contains("5 of 5 messages were not confirmed"));
+        for (boolean ack : results) assertFalse(ack);
+        assertEquals(0, _broker.getQueueSize("test"));
+
+        // channel stays usable after nack
+        _broker.setNackPublishes(false);
+        results = _api.sendMessages(batch(2));
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertTrue(results[0] && results[1]);
+    }
+
+    @Test
+    public void emptyBatchIsNotPublished() throws Exception {
+        assertEquals(0, _api.sendMessages(new APIMessage[0]).length);
+        assertFalse(_api.isLastError());
+        assertEquals(0, _broker.getPublished());
+    }
+
+    private static APIMessage[] batch(int count) throws Exception {
+        APIMessage[] batch = new APIMessage[count];
+        for (int i = 0; i < count; i++) {
+            batch[i] = new APIMessage();
+            batch[i].setBodyString("m" + i);
+        }
+
+        return batch;
+    }
+}
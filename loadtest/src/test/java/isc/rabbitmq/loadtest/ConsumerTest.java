@@ -0,0 +1,103 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class ConsumerTest
+/// Push consumer reads messages in order from local buffer, waits readTimeout when it is empty and returns not taken messages on stop
+public class ConsumerTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.stopConsumer();
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void pushedMessagesAreReadInOrder() throws Exception {
+        for (int i = 0; i < 20; i++) send("m" + i);
+
+        assertFalse(_api.startConsumer(3, 1000));
+        for (int i = 0; i < 20; i++) assertEquals("m" + i, read().getBodyString());
+
+        assertNull(read().MessageId);
+        assertEquals(0, _broker.getQueueSize("test"));
+    }
+
+    @Test
+    public void emptyBufferWaitsForMessage() throws Exception {
+        assertFalse(_api.startConsumer(3, 300));
+
+        long started = System.currentTimeMillis();
+        assertNull(read().MessageId);
+        assertTrue(System.currentTimeMillis() - started >= 250);
+
+        Thread sender = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                send("late");
+            } catch (Exception ex) {
+                // test fails by empty read
+            }
+        });
+        sender.start();
+
+        assertEquals("late", read().getBodyString());
+        sender.join();
+    }
+
+    @Test
+    public void stopReturnsNotTakenMessages() throws Exception {
+        for (int i = 0; i < 10; i++) send("m" + i);
+
+        assertFalse(_api.startConsumer(5, 1000));
+        assertEquals("m0", read().getBodyString());
+        assertEquals("m1", read().getBodyString());
+
+        assertFalse(_api.getLastErrorMessage(), _api.stopConsumer());
+        waitFor(() -> _broker.getQueueSize("test") == 8);
+
+        // after stop readMessage takes messages by basicGet
+        for (int i = 0; i < 8; i++) assertNotNull(read().MessageId);
+        assertNull(read().MessageId);
+    }
+
+    @Test
+    public void secondStartFails() throws Exception {
+        assertFalse(_api.startConsumer(3, 0));
+
+        assertTrue(_api.startConsumer(3, 0));
+        assertTrue(_api.getLastErrorMessage().contains("already started"));
+    }
+
+    private APIMessage read() throws Exception {
+        APIMessage message = _api.readMessage();
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+
+        return message;
+    }
+
+    private void send(String body) throws Exception {
+        APIMessage message = new APIMessage();
+        message.MessageId = body;
+        message.setBodyString(body);
+        _api.sendMessage(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+    }
+}
@@ -0,0 +1,156 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/// class DedupTest
+/// Read methods drop or flag redelivered MessageId, nacked message is read again and duplicates neither prolong nor cut waiting
+public class DedupTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void duplicateIsDropped() throws Exception {
+        assertFalse(_api.setDeduplication(100, 0, 0, true));
+        send("1", "a");
+        send("1", "a");
+        send("2", "b");
+
+        assertEquals("a", read().getBodyString());
+        assertEquals("b", read().getBodyString());
+        assertNull(read().MessageId);
+        assertTrue(counts().contains("dedup.hits=1"));
+    }
+
+    @Test
+    public void duplicateIsFlagged() throws Exception {
+        assertFalse(_api.setDeduplication(100, 0, 0, false));
+        send("1", "a");
+        send("1", "a");
+
+        assertNull(read().getHeader("x-duplicate"));
+        assertEquals("exact", read().getHeader("x-duplicate"));
+    }
+
+    @Test
+    public void nackedMessageIsNotDuplicate() throws Exception {
+        assertFalse(_api.setManualAck(true, 1, 0));
+        assertFalse(_api.setDeduplication(100, 0, 0, true));
+        send("1", "a");
+
+        assertFalse(_api.nack(read().DeliveryTag, true));
+
+        APIMessage again = read();
+        assertEquals("a", again.getBodyString());
+        assertNull(again.getHeader("x-duplicate"));
+        assertFalse(_api.ack(again.DeliveryTag));
+
+        send("1", "a");
+        assertNull(read().MessageId);
+    }
+
+    @Test
+    public void overflowOfNotAckedReadsIsCounted() throws Exception {
+        assertFalse(_api.setManualAck(true, 1, 0));
+        assertFalse(_api.setDeduplication(2, 0, 0, true));
+        for (int i = 0; i < 3; i++) send(String.valueOf(i), "m" + i);
+
+        for (int i = 0; i < 3; i++) assertEquals("m" + i, read().getBodyString());
+        assertTrue(counts().contains("dedup.pending=2"));
+        assertTrue(counts().contains("dedup.pendingDropped=1"));
+    }
+
+    @Test
+    public void duplicatesDoNotProlongRead() throws Exception {
+        assertFalse(_api.setDeduplication(100, 0, 0, true));
+        assertFalse(_api.startConsumer(10, 500));
+        send("1", "a");
+        assertEquals("a", read().getBodyString());
+
+        // duplicates keep coming longer than read timeout
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 0; i < 40; i++) {
+                    send("1", "a");
+                    Thread.sleep(50);
+                }
+            } catch (Exception ex) {
+                // test fails by timing of read
+            }
+        });
+        sender.start();
+
+        long started = System.currentTimeMillis();
+        assertNull(read().MessageId);
+        long elapsed = System.currentTimeMillis() - started;
+        sender.join();
+
+        assertTrue("read took " + elapsed + " milliseconds", elapsed < 1500);
+    }
+
+    @Test
+    public void readMessagesWaitsAfterDroppedDuplicate() throws Exception {
+        assertFalse(_api.setDeduplication(100, 0, 0, true));
+        assertFalse(_api.startConsumer(10, 0));
+        send("1", "a");
+        assertEquals(1, _api.readMessages(10, 1000).length);
+
+        send("1", "a");
+        Thread sender = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+                send("2", "b");
+            } catch (Exception ex) {
+                // test fails by empty read
+            }
+        });
+        sender.start();
+
+        APIMessage[] messages = _api.readMessages(10, 3000);
+        sender.join();
+
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertEquals(1, messages.length);
+        assertEquals("b", messages[0].getBodyString());
+    }
+
+    private APIMessage read() throws Exception {
+        APIMessage message = _api.readMessage();
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+
+        return message;
+    }
+
+    private List<String> counts() {
+        return Arrays.asList(_api.getDeduplicationCounts());
+    }
+
+    private void send(String id, String body) throws Exception {
+        APIMessage message = new APIMessage();
+        message.MessageId = id;
+        message.setBodyString(body);
+        _api.sendMessage(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+    }
+}
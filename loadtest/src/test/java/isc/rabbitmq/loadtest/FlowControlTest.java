@@ -0,0 +1,99 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class FlowControlTest
+/// trySend fails at once while broker blocks connection, rate limiter and window are full, sendMessage waits for rate
+public class FlowControlTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _broker.setBlocked(false, "");
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void blockedConnectionFailsTrySend() throws Exception {
+        _broker.setBlocked(true, "low on memory");
+        waitFor(() -> _api.canSend() == API.SEND_BLOCKED);
+
+        assertEquals(API.SEND_BLOCKED, _api.trySend(message("blocked")));
+
+        _broker.setBlocked(false, "");
+        waitFor(() -> _api.canSend() == API.SEND_OK);
+
+        assertEquals(API.SEND_OK, _api.trySend(message("unblocked")));
+        waitFor(() -> _broker.getQueueSize("test") == 1);
+        assertEquals("unblocked", _api.readMessage().getBodyString());
+    }
+
+    @Test
+    public void rateLimiterFailsTrySend() throws Exception {
+        assertFalse(_api.setFlowControl(1, 2, 0));
+
+        assertEquals(API.SEND_OK, _api.trySend(message("m0")));
+        assertEquals(API.SEND_OK, _api.trySend(message("m1")));
+        assertEquals(API.SEND_RATE_LIMITED, _api.canSend());
+        assertEquals(API.SEND_RATE_LIMITED, _api.trySend(message("m2")));
+
+        waitFor(() -> _broker.getQueueSize("test") == 2);
+    }
+
+    @Test
+    public void rateLimiterDelaysSendMessage() throws Exception {
+        assertFalse(_api.setFlowControl(20, 1, 0));
+
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < 11; i++) {
+            _api.sendMessage(message("m" + i));
+            assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        }
+        long elapsed = System.currentTimeMillis() - started;
+
+        // 10 messages after burst take 500 milliseconds at 20 messages per second
+        assertTrue("send took " + elapsed + " milliseconds", elapsed >= 400);
+        waitFor(() -> _broker.getQueueSize("test") == 11);
+    }
+
+    @Test
+    public void fullWindowFailsTrySend() throws Exception {
+        assertFalse(_api.setFlowControl(0, 0, 2));
+        assertEquals(API.SEND_OK, _api.trySend(message("first")));
+        waitFor(() -> _api.getSendWindowOutstanding() == 0);
+
+        // broker handles publishes late, so confirms are not received yet
+        _broker.setLatency(300);
+        assertEquals(API.SEND_OK, _api.trySend(message("m0")));
+        assertEquals(API.SEND_OK, _api.trySend(message("m1")));
+        assertEquals(API.SEND_WINDOW_FULL, _api.trySend(message("m2")));
+
+        _broker.setLatency(0);
+        waitFor(() -> _api.getSendWindowOutstanding() == 0);
+        assertEquals(API.SEND_OK, _api.trySend(message("m3")));
+        waitFor(() -> _broker.getQueueSize("test") == 4);
+    }
+
+    private static APIMessage message(String body) throws Exception {
+        APIMessage message = new APIMessage();
+        message.setBodyString(body);
+
+        return message;
+    }
+}
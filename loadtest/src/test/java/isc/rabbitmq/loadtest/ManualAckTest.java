@@ -0,0 +1,74 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class ManualAckTest
+/// Push consumer with manual ack keeps reading when batch of acks is larger than prefetch
+public class ManualAckTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _broker.declareQueue("other");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+        assertFalse(_api.setManualAck(true, 100, 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void startConsumerReadsMoreThanPrefetch() throws Exception {
+        for (int i = 0; i < 20; i++) send("test", "m" + i);
+
+        assertFalse(_api.startConsumer(5, 1000));
+        readAndAck(20);
+
+        assertFalse(_api.stopConsumer());
+        waitFor(() -> _broker.getQueueSize("test") == 0);
+    }
+
+    @Test
+    public void subscribeReadsMoreThanPrefetch() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            send("test", "t" + i);
+            send("other", "o" + i);
+        }
+
+        assertFalse(_api.subscribe("test,other", false, 3, 1000));
+        readAndAck(20);
+
+        assertFalse(_api.stopConsumer());
+        waitFor(() -> _broker.getQueueSize("test") == 0 && _broker.getQueueSize("other") == 0);
+    }
+
+    private void readAndAck(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            APIMessage message = _api.readMessage();
+            assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+            assertNotNull("message " + i + " is not pushed", message.getBodyString());
+            assertFalse(_api.ack(message.DeliveryTag));
+        }
+    }
+
+    private void send(String queue, String body) throws Exception {
+        APIMessage message = new APIMessage();
+        message.setBodyString(body);
+        message.MessageId = body;
+        _api.sendMessageToQueue(queue, message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+    }
+}
@@ -0,0 +1,121 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class MultiQueueTest
+/// Subscription reads queues by shares of their weights or by priority, stop cancels consumers and returns not taken messages
+public class MultiQueueTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _broker.declareQueue("orders");
+        _broker.declareQueue("audit");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.stopConsumer();
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void queuesAreReadByWeights() throws Exception {
+        fill(40);
+
+        assertFalse(_api.subscribe("orders:3,audit", false, 20, 1000));
+        waitFor(() -> counts().contains("orders.buffered=20") && counts().contains("audit.buffered=20"));
+        assertTrue(counts().contains("orders.weight=3"));
+        assertTrue(counts().contains("audit.weight=1"));
+
+        // both queues have messages all the time, so shares are exact
+        int orders = 0;
+        for (int i = 0; i < 20; i++) {
+            if ("orders".equals(read().Queue)) orders++;
+        }
+
+        assertEquals(15, orders);
+        assertTrue(counts().contains("orders.taken=15"));
+        assertTrue(counts().contains("audit.taken=5"));
+    }
+
+    @Test
+    public void firstQueueHasPriority() throws Exception {
+        fill(10);
+
+        assertFalse(_api.subscribe(new String[] {"orders", "audit"}, null, true, 20, 1000));
+        waitFor(() -> counts().contains("orders.buffered=10") && counts().contains("audit.buffered=10"));
+
+        for (int i = 0; i < 10; i++) assertEquals("orders", read().Queue);
+        for (int i = 0; i < 10; i++) assertEquals("audit", read().Queue);
+    }
+
+    @Test
+    public void stopCancelsConsumersAndReturnsNotTakenMessages() throws Exception {
+        fill(10);
+
+        assertFalse(_api.subscribe("orders,audit", false, 5, 1000));
+        waitFor(() -> counts().contains("orders.buffered=5") && counts().contains("audit.buffered=5"));
+        read();
+        read();
+
+        assertFalse(_api.getLastErrorMessage(), _api.stopConsumer());
+        waitFor(() -> _broker.getQueueSize("orders") + _broker.getQueueSize("audit") == 18);
+        assertEquals(0, _api.getSubscriptionCounts().length);
+
+        // cancelled consumers get no more messages
+        fill(1);
+        Thread.sleep(200);
+        assertEquals(20, _broker.getQueueSize("orders") + _broker.getQueueSize("audit"));
+    }
+
+    @Test
+    public void wrongWeightFailsSubscribe() throws Exception {
+        assertTrue(_api.subscribe("orders:0,audit", false, 5, 1000));
+        assertTrue(_api.getLastErrorMessage().contains("must be greater than 0"));
+
+        // consumer is not started, so subscribe may be repeated
+        assertFalse(_api.getLastErrorMessage(), _api.subscribe("orders,audit", false, 5, 1000));
+    }
+
+    private APIMessage read() throws Exception {
+        APIMessage message = _api.readMessage();
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertNotNull("message is not pushed", message.getBodyString());
+
+        return message;
+    }
+
+    private List<String> counts() {
+        return Arrays.asList(_api.getSubscriptionCounts());
+    }
+
+    /// Send count of messages to every queue
+    private void fill(int count) throws Exception {
+        long published = _broker.getPublished() + 2L * count;
+        for (int i = 0; i < count; i++) {
+            for (String queue : new String[] {"orders", "audit"}) {
+                APIMessage message = new APIMessage();
+                message.setBodyString(queue + i);
+                _api.sendMessageToQueue(queue, message);
+                assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+            }
+        }
+        waitFor(() -> _broker.getPublished() == published);
+    }
+}
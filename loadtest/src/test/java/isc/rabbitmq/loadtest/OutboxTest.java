@@ -0,0 +1,110 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class OutboxTest
+/// Messages sent while connection is down are published in order after recovery, resize of outbox keeps every message once
+public class OutboxTest {
+    // recovery interval of resilient connection is 5 seconds
+    private static final long RECOVERY_TIMEOUT = 15000;
+
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test", "", true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void outboxIsReplayedAfterRecovery() throws Exception {
+        dropConnection();
+        for (int i = 0; i < 10; i++) send(i, 10);
+        assertEquals(10, _api.getOutboxCount());
+
+        waitFor(() -> _api.getOutboxCount() == 0 && _broker.getQueueSize("test") == 10, RECOVERY_TIMEOUT);
+        readInOrder(10);
+    }
+
+    @Test
+    public void outboxIsNotShrunkBelowCountOfMessages() throws Exception {
+        dropConnection();
+        for (int i = 0; i < 5; i++) send(i, 10);
+
+        assertTrue(_api.setOutboxSize(3));
+        assertEquals(5, _api.getOutboxCount());
+
+        waitFor(() -> _api.getOutboxCount() == 0 && _broker.getQueueSize("test") == 5, RECOVERY_TIMEOUT);
+        readInOrder(5);
+    }
+
+    @Test
+    public void resizeDuringReplayKeepsEveryMessageOnce() throws Exception {
+        int count = 200;
+
+        dropConnection();
+        for (int i = 0; i < count; i++) send(i, 64 * 1024);
+
+        // broker does not read publishes, so replay stops in the middle when socket buffers are full
+        _broker.setBlocked(true, "test");
+        waitFor(() -> _api.isOpen(), RECOVERY_TIMEOUT);
+        Thread.sleep(200);
+
+        AtomicBoolean failed = new AtomicBoolean(true);
+        Thread resize = new Thread(() -> {
+            try {
+                failed.set(_api.setOutboxSize(1000));
+            } catch (Exception ex) {
+                // failed stays true
+            }
+        });
+        resize.start();
+
+        Thread.sleep(100);
+        _broker.setBlocked(false, "");
+        resize.join();
+        assertFalse(failed.get());
+
+        waitFor(() -> _api.getOutboxCount() == 0 && _broker.getQueueSize("test") == count);
+        readInOrder(count);
+        assertNull(_api.readMessage().MessageId);
+    }
+
+    private void dropConnection() throws Exception {
+        _broker.dropConnections();
+        waitFor(() -> !_api.isOpen());
+    }
+
+    private void readInOrder(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            APIMessage message = _api.readMessage();
+            assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+            assertEquals(String.valueOf(i), message.MessageId);
+        }
+    }
+
+    private void send(int id, int length) throws Exception {
+        APIMessage message = new APIMessage();
+        message.MessageId = String.valueOf(id);
+        message.setBodyStream(new byte[length]);
+        _api.sendMessage(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+    }
+}
@@ -0,0 +1,132 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class RpcTest
+/// Replies are matched with calls by CorrelationId in any order, call without reply fails by timeout of timer wheel
+public class RpcTest {
+    private StandInBroker _broker;
+    private API _api;
+    private API _replier;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _broker.declareQueue("rpc");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+        _replier = new API("localhost", _broker.getPort(), "guest", "guest", "/", "rpc");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _replier.close();
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void callReturnsReply() throws Exception {
+        Thread replier = replyLater();
+
+        APIMessage reply = _api.callQueue("rpc", request("ping"), 5000);
+        replier.join();
+
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertEquals("re:ping", reply.getBodyString());
+        assertEquals(0, _api.getCallsPending());
+    }
+
+    @Test
+    public void repliesInOtherOrderAreMatched() throws Exception {
+        long[] calls = new long[5];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = _api.callQueueAsync("rpc", request("m" + i), 5000);
+            assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        }
+        waitFor(() -> _broker.getQueueSize("rpc") == calls.length);
+
+        List<APIMessage> requests = new ArrayList<>();
+        for (int i = 0; i < calls.length; i++) requests.add(_replier.readMessage());
+        Collections.reverse(requests);
+        for (APIMessage request : requests) reply(request);
+
+        for (int i = 0; i < calls.length; i++) {
+            APIMessage reply = _api.awaitReply(calls[i], 5000);
+            assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+            assertEquals("re:m" + i, reply.getBodyString());
+        }
+    }
+
+    @Test
+    public void callWithoutReplyTimesOut() throws Exception {
+        long call = _api.callQueueAsync("rpc", request("lost"), 200);
+        assertEquals(1, _api.getCallsPending());
+
+        // timeout of call completes it before timeout of wait
+        long started = System.currentTimeMillis();
+        assertNull(_api.awaitReply(call, 5000));
+        long elapsed = System.currentTimeMillis() - started;
+
+        assertTrue(_api.getLastErrorMessage(), _api.getLastErrorMessage().contains("Timeout waiting for reply"));
+        assertTrue("call took " + elapsed + " milliseconds", elapsed < 2000);
+        assertEquals(0, _api.getCallsPending());
+    }
+
+    @Test
+    public void cancelledCallDropsReply() throws Exception {
+        long call = _api.callQueueAsync("rpc", request("ping"), 5000);
+        assertFalse(_api.cancelCall(call));
+
+        waitFor(() -> _broker.getQueueSize("rpc") == 1);
+        reply(_replier.readMessage());
+
+        assertNull(_api.awaitReply(call, 0));
+        assertTrue(_api.getLastErrorMessage().contains("unknown"));
+        assertEquals(0, _api.getCallsPending());
+    }
+
+    /// Reply to one request when it comes
+    private Thread replyLater() {
+        Thread replier = new Thread(() -> {
+            try {
+                APIMessage request = _replier.readMessage();
+                for (; request.ReplyTo == null; request = _replier.readMessage()) Thread.sleep(10);
+
+                reply(request);
+            } catch (Exception ex) {
+                // test fails by timeout of call
+            }
+        });
+        replier.start();
+
+        return replier;
+    }
+
+    private void reply(APIMessage request) throws Exception {
+        assertNotNull("request is not received", request.ReplyTo);
+
+        APIMessage reply = new APIMessage();
+        reply.CorrelationId = request.CorrelationId;
+        reply.setBodyString("re:" + request.getBodyString());
+        _replier.sendMessageToQueue(request.ReplyTo, reply);
+    }
+
+    private static APIMessage request(String body) throws Exception {
+        APIMessage request = new APIMessage();
+        request.setBodyString(body);
+
+        return request;
+    }
+}
@@ -0,0 +1,118 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class SpoolTest
+/// Spool keeps messages sent while broker is down and forwards them after reconnection, broken records and segments don't block it
+public class SpoolTest {
+    // recovery interval of resilient connection is 5 seconds
+    private static final long RECOVERY_TIMEOUT = 15000;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private StandInBroker _broker;
+    private API _api;
+    private File _directory;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test", "", true);
+        _directory = _folder.newFolder("spool");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void spoolDrainsAfterReconnection() throws Exception {
+        assertFalse(_api.enableSpool(_directory.getPath(), 64 * 1024));
+
+        int port = _broker.getPort();
+        _broker.close();
+
+        for (int i = 0; i < 10; i++) send("m" + i);
+        assertEquals(10, _api.getSpoolCount());
+
+        _broker = new StandInBroker(port);
+        _broker.declareQueue("test");
+
+        waitFor(() -> _api.getSpoolCount() == 0 && _broker.getQueueSize("test") == 10, RECOVERY_TIMEOUT);
+        assertEquals("m0", _api.readMessage().getBodyString());
+    }
+
+    @Test
+    public void unknownRecordIsQuarantined() throws Exception {
+        writeSegment(new File(_directory, "00000000000000000001.spool"), new byte[] {99, 0, 0});
+
+        assertFalse(_api.enableSpool(_directory.getPath(), 4096));
+        send("after");
+
+        waitFor(() -> _api.getSpoolCount() == 0 && _broker.getQueueSize("test") == 1);
+        assertTrue(Arrays.asList(_api.getSpoolCounts()).contains("spool.quarantined=1"));
+        assertTrue(new File(_directory, "quarantine.bad").isFile());
+        assertEquals("after", _api.readMessage().getBodyString());
+
+        // skipped segment is confirmed and deleted
+        waitFor(() -> !new File(_directory, "00000000000000000001.spool").exists());
+    }
+
+    @Test
+    public void damagedSegmentIsQuarantined() throws Exception {
+        File damaged = new File(_directory, "00000000000000000001.spool");
+        try (FileOutputStream out = new FileOutputStream(damaged)) {
+            out.write(new byte[4096]);
+        }
+
+        assertFalse(_api.getLastErrorMessage(), _api.enableSpool(_directory.getPath(), 4096));
+        send("after");
+
+        waitFor(() -> _api.getSpoolCount() == 0 && _broker.getQueueSize("test") == 1);
+        assertTrue(Arrays.asList(_api.getSpoolCounts()).contains("spool.quarantined=1"));
+        assertTrue(new File(_directory, "00000000000000000001.spool.bad").isFile());
+        assertEquals("after", _api.readMessage().getBodyString());
+    }
+
+    /// Write segment by format of MessageSpool: magic, reserved, confirmed position, records with length and crc32
+    private static void writeSegment(File file, byte[] record) throws Exception {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x53504F4C);
+            out.writeInt(0);
+            out.writeLong(16);
+            out.writeInt(record.length);
+            out.writeInt((int) crc.getValue());
+            out.write(record);
+            out.write(new byte[4096 - 24 - record.length]);
+        }
+    }
+
+    private void send(String body) throws Exception {
+        APIMessage message = new APIMessage();
+        message.setBodyString(body);
+        _api.sendMessage(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+    }
+}
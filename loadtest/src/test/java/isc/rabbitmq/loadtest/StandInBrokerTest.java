@@ -0,0 +1,86 @@
+package isc.rabbitmq.loadtest;
+
+import isc.rabbitmq.API;
+import isc.rabbitmq.APIMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static isc.rabbitmq.loadtest.Conditions.waitFor;
+import static org.junit.Assert.*;
+
+/// class StandInBrokerTest
+/// Behavior of stand-in broker other tests rely on: routing, prefetch per consumer, requeue and restart on the same port
+public class StandInBrokerTest {
+    private StandInBroker _broker;
+    private API _api;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new StandInBroker(0);
+        _broker.declareQueue("test");
+        _api = new API("localhost", _broker.getPort(), "guest", "guest", "/", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _api.close();
+        _broker.close();
+    }
+
+    @Test
+    public void publishAndGet() throws Exception {
+        APIMessage message = new APIMessage("text/plain", 2);
+        message.MessageId = "1";
+        message.setHeader("system", "test");
+        message.setBodyString("body");
+        _api.sendMessage(message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+
+        APIMessage read = _api.readMessage();
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+        assertEquals("1", read.MessageId);
+        assertEquals("test", read.getHeader("system"));
+        assertEquals("body", read.getBodyString());
+        assertEquals("test", read.Queue);
+
+        assertNull(_api.readMessage().MessageId);
+    }
+
+    @Test
+    public void prefetchIsAppliedToEveryConsumer() throws Exception {
+        _broker.declareQueue("other");
+        for (int i = 0; i < 10; i++) {
+            send("test", "t" + i);
+            send("other", "o" + i);
+        }
+
+        // both consumers of one channel get their prefetch, so every queue keeps 10 - 4 messages
+        assertFalse(_api.subscribe("test,other", false, 4, 1000));
+        waitFor(() -> _broker.getQueueSize("test") == 6 && _broker.getQueueSize("other") == 6);
+
+        assertFalse(_api.stopConsumer());
+        waitFor(() -> _broker.getQueueSize("test") == 10 && _broker.getQueueSize("other") == 10);
+    }
+
+    @Test
+    public void restartOnTheSamePort() throws Exception {
+        int port = _broker.getPort();
+        _api.close();
+        _broker.close();
+
+        _broker = new StandInBroker(port);
+        _broker.declareQueue("test");
+        _api = new API("localhost", port, "guest", "guest", "/", "test");
+
+        send("test", "after restart");
+        assertEquals("after restart", _api.readMessage().getBodyString());
+    }
+
+    private void send(String queue, String body) throws Exception {
+        APIMessage message = new APIMessage();
+        message.setBodyString(body);
+        _api.sendMessageToQueue(queue, message);
+        assertFalse(_api.getLastErrorMessage(), _api.isLastError());
+    }
+}
@@ -1,7 +1,30 @@
 package isc.rabbitmq;
 
 import com.rabbitmq.client.*;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
 /**
  * Created by eduard on 06.10.2017.
@@ -9,7 +32,15 @@ import java.util.Date;
  */
 
 public class API {
-    private com.rabbitmq.client.Channel _channel;
+    // results of canSend/trySend
+    public static final int SEND_OK = 0;
+    public static final int SEND_BLOCKED = 1;
+    public static final int SEND_RATE_LIMITED = 2;
+    public static final int SEND_WINDOW_FULL = 3;
+    public static final int SEND_CLOSED = 4;
+    public static final int SEND_ERROR = -1;
+
+    private volatile com.rabbitmq.client.Channel _channel;
 
     private final String _queue;
 
@@ -17,23 +48,114 @@ public class API {
 
     private final Connection _connection;
 
-    // class for information about last error
+    // heartbeat (seconds) and interval between reconnection attempts (milliseconds) in resilient mode
+    private static final int RESILIENT_HEARTBEAT = 30;
+    private static final long RESILIENT_RECOVERY_INTERVAL = 5000;
+    private static final int DEFAULT_OUTBOX_SIZE = 10000;
+
+    // messages sent while connection is down in resilient mode, null if resilient mode is off;
+    // outbox is replaced and filled under _outboxLock, so no message is added to replaced outbox
+    private volatile Outbox _outbox = null;
+    private final Object _outboxLock = new Object();
+
+    // durable local spool of sent messages, null if sends are published directly
+    private volatile MessageSpool _spool = null;
+
+    // counters and latencies, registered as MBean by registerMBean
+    private final APIStats _stats = new APIStats();
+    private ObjectName _mbeanName = null;
+
+    // compression of sent bodies: ContentEncoding, minimum size of body and level, null encoding - no compression
+    private volatile String _compression = null;
+    private volatile int _compressionThreshold = 0;
+    private volatile int _compressionLevel = 6;
+
+    // decompression of read bodies by their ContentEncoding and maximum size of decompressed body
+    private static final int DEFAULT_MAX_DECOMPRESSED_SIZE = 64 * 1024 * 1024;
+    private volatile boolean _decompression = false;
+    private volatile int _maxDecompressedSize = DEFAULT_MAX_DECOMPRESSED_SIZE;
+
+    // flow control of sends: token bucket (null - no limit) and window of not confirmed trySend messages (0 - no confirms)
+    private volatile RateLimiter _rateLimiter = null;
+    private final Object _flowLock = new Object();
+    private int _sendWindow = 0;
+    private Channel _flowChannel = null;
+    private volatile ConfirmTracker _flowTracker = null;
+
+    // registered templates of messages by name
+    private final Map<String, APIMessageTemplate> _templates = new ConcurrentHashMap<>();
+
+    // background sender of sendMessageAsync, null if async sending is not started
+    private volatile AsyncSender _asyncSender = null;
+
+    // request/reply over Direct Reply-to, created on first call
+    private volatile RpcClient _rpcClient = null;
+
+    // recently read MessageId values, duplicates are dropped or flagged by header x-duplicate, null - no deduplication
+    private static final String DUPLICATE_HEADER = "x-duplicate";
+    private volatile DedupCache _dedup = null;
+    private volatile boolean _dedupDrop = false;
+
+    // reassembly of messages sent by chunks, created on first readChunked call
+    private volatile ChunkAssembler _chunkAssembler = null;
+    private File _chunkDirectory = null;
+    private long _chunkIdleTimeout = 600000;
+
+    // free messages for reuse by read methods, null if every read creates new message
+    private volatile APIMessagePool _messagePool = null;
+
+    // pause between basicGet calls while readMessages waits for messages without consumer
+    private static final long POLL_INTERVAL = 50;
+
+    // consumer for push-based reading, null if readMessage uses basicGet
+    private volatile DeliveryBuffer _consumer = null;
+
+    // consumer processing messages by lanes of handler threads, null if it is not started;
+    // started and stopped under own lock, start waits for broker and must not block other calls
+    private volatile Dispatcher _dispatcher = null;
+    private final Object _dispatcherLock = new Object();
+
+    // pool of channels for calls from several threads, null if all calls use _channel
+    private volatile ChannelPool _channelPool = null;
+
+    // manual acknowledgement of read messages
+    private volatile boolean _manualAck = false;
+    private int _ackBatchSize = 1;
+    private AckBatcher _ackBatcher = null;
+
+    // prefetch of started consumer: broker stops pushing after prefetch not acked messages, so batch of acks must not be larger
+    private int _ackBatchLimit = Integer.MAX_VALUE;
+    private ScheduledExecutorService _ackTimer = null;
+
+    // confirm-enabled channel for batch publishing, created on first use
+    private final Object _confirmLock = new Object();
+    private Channel _confirmChannel = null;
+    private ConfirmTracker _confirmTracker = null;
+    private int _confirmWindow = 1000;
+    private long _confirmTimeout = 30000;
+
+    // class for information about last error, every thread has own last error
     private class LastError {
 
         // add flag last error and last error message
-        private boolean _lastError = false;
-        private String _lastErrorMessage = "";
-        private String _lastErrorHeader = "";
+        private class State {
+            private boolean _lastError = false;
+            private String _lastErrorMessage = "";
+            private String _lastErrorHeader = "";
+        }
+
+        private final ThreadLocal<State> _state = ThreadLocal.withInitial(State::new);
 
         // functions for using information about last error
         public void clear() {
-            _lastError = false;
-            _lastErrorMessage = "";
-            _lastErrorHeader = "";
+            State state = _state.get();
+            state._lastError = false;
+            state._lastErrorMessage = "";
+            state._lastErrorHeader = "";
         }
 
         public void setHeader(String errorHeader) {
-            _lastErrorHeader = (errorHeader == null ? "" : errorHeader);
+            _state.get()._lastErrorHeader = (errorHeader == null ? "" : errorHeader);
         }
 
         public void setMessage(String errorMessage) {
@@ -41,18 +163,19 @@ public class API {
         }
 
         public void setMessage(String errorMessage, String errorHeader) {
-            _lastError = true;
+            State state = _state.get();
+            state._lastError = true;
 
-            String Header = ((errorHeader == null) || (errorHeader.isEmpty()) ? _lastErrorHeader : errorHeader);
-            _lastErrorMessage = "["+ Header +"]: " + ((errorMessage == null) || (errorMessage.isEmpty()) ? "Undefined error" : errorMessage);
+            String Header = ((errorHeader == null) || (errorHeader.isEmpty()) ? state._lastErrorHeader : errorHeader);
+            state._lastErrorMessage = "["+ Header +"]: " + ((errorMessage == null) || (errorMessage.isEmpty()) ? "Undefined error" : errorMessage);
         }
 
         public boolean isError() {
-            return _lastError;
+            return _state.get()._lastError;
         }
 
         public String getMessage() {
-            return "ERROR "+_lastErrorMessage;
+            return "ERROR "+_state.get()._lastErrorMessage;
         }
     }
 
@@ -73,6 +196,13 @@ public class API {
 
     /// String host, int port, String user, String pass, String virtualHost, String queue, String exchange
     public API(String host, int port, String user, String pass, String virtualHost, String queue, String exchange)  throws Exception {
+        this(host, port, user, pass, virtualHost, queue, exchange, false);
+    }
+
+    /// String host, int port, String user, String pass, String virtualHost, String queue, String exchange, boolean resilient
+    /// host - host name, URI "amqp://..." or list of hosts "host1:port1,host2:port2" connected in turn on failover
+    /// resilient - heartbeats, automatic recovery of connection and topology, sends go to outbox while connection is down
+    public API(String host, int port, String user, String pass, String virtualHost, String queue, String exchange, boolean resilient)  throws Exception {
         _lastError = new LastError();
         Connection con = null;
 
@@ -90,11 +220,40 @@ public class API {
                 factory.setVirtualHost(virtualHost);
             }
 
-            //factory.setAutomaticRecoveryEnabled(true);
-            factory.setRequestedHeartbeat(0);
+            if (resilient) {
+                factory.setAutomaticRecoveryEnabled(true);
+                factory.setTopologyRecoveryEnabled(true);
+                factory.setNetworkRecoveryInterval(RESILIENT_RECOVERY_INTERVAL);
+                factory.setRequestedHeartbeat(RESILIENT_HEARTBEAT);
+            } else {
+                factory.setAutomaticRecoveryEnabled(false);
+                factory.setRequestedHeartbeat(0);
+            }
 
             _lastError.setHeader("API::newConnection");
-            con = factory.newConnection();
+            if (!host.toLowerCase().startsWith("amqp://") && host.contains(",")) {
+                // hosts without port use port of factory
+                con = factory.newConnection(Address.parseAddresses(host));
+            } else {
+                con = factory.newConnection();
+            }
+
+            con.addBlockedListener(_stats);
+
+            if (resilient) {
+                _outbox = new Outbox(DEFAULT_OUTBOX_SIZE, this::publishFromOutbox);
+
+                if (con instanceof Recoverable) ((Recoverable) con).addRecoveryListener(new RecoveryListener() {
+                    @Override
+                    public void handleRecovery(Recoverable recoverable) {
+                        Outbox outbox = _outbox;
+                        if (outbox != null) outbox.replay();
+                    }
+
+                    @Override
+                    public void handleRecoveryStarted(Recoverable recoverable) {}
+                });
+            }
 
             _lastError.setHeader("API::createChannel");
             _channel = con.createChannel();
@@ -122,6 +281,17 @@ public class API {
         _exchange = (exchange != null ? exchange : "");
     }
 
+    /// Connection connection, String queue, String exchange
+    /// Uses already opened connection, for benchmarks and tests with stub connection
+    API(Connection connection, String queue, String exchange) throws Exception {
+        _lastError = new LastError();
+        _connection = connection;
+        _connection.addBlockedListener(_stats);
+        _channel = connection.createChannel();
+        _queue = (queue != null ? queue : "");
+        _exchange = (exchange != null ? exchange : "");
+    }
+
     /// durable - true if we are declaring a durable queue (the queue will survive a server restart)
     /// exclusive - true if we are declaring an exclusive queue (restricted to this connection)
     /// autoDelete - true if we are declaring an autodelete queue (server will delete it when no longer in use)
@@ -162,6 +332,148 @@ public class API {
         return _lastError.isError();
     }
 
+    /// size - maximum count of channels used by concurrent calls from several threads (0 - all calls use one channel)
+    /// timeout - milliseconds to wait for free channel when all channels are taken
+    /// Messages read with manual ack always use main channel, because delivery tags are valid only for it
+    /// Channels of previous pool taken by running calls are returned to it and closed, calls started later use new pool
+    public boolean setChannelPool(int size, long timeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setChannelPool");
+            if (size < 0) throw new IllegalArgumentException("Size of pool must not be negative");
+
+            ChannelPool pool = _channelPool;
+            _channelPool = (size > 0 ? new ChannelPool(_connection, size, timeout) : null);
+
+            if (pool != null) pool.close();
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// size - maximum count of messages kept in outbox while connection is down (resilient mode only)
+    /// Messages waiting in outbox are kept, so size must not be less than their count
+    public boolean setOutboxSize(int size) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setOutboxSize");
+            if (_outbox == null) throw new IllegalStateException("Outbox is available in resilient mode only");
+            if (size <= 0) throw new IllegalArgumentException("Size of outbox must be greater than 0");
+
+            Outbox outbox;
+            synchronized (_outboxLock) {
+                // replay only removes messages, so they fit if they fit now
+                Outbox old = _outbox;
+                if (old.size() > size) throw new IllegalStateException("Outbox has more messages than new size");
+
+                // waits for message being published by replay, it is not moved to be sent twice
+                old.close();
+
+                outbox = new Outbox(size, this::publishFromOutbox);
+                for (Outbox.Entry entry = old.poll(); entry != null; entry = old.poll()) outbox.offer(entry);
+                _outbox = outbox;
+            }
+
+            if (_connection.isOpen()) outbox.replay();
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Return: count of messages waiting in outbox for recovery of connection
+    public int getOutboxCount() {
+        Outbox outbox = _outbox;
+        return (outbox != null ? outbox.size() : 0);
+    }
+
+    private void sendMessageToOutbox(Outbox.Entry entry) throws Exception {
+        _lastError.setHeader("API::sendMessageToOutbox");
+        Outbox outbox;
+        synchronized (_outboxLock) {
+            outbox = _outbox;
+            if (!outbox.offer(entry)) throw new java.io.IOException("Connection is down and outbox is full (" + outbox.size() + " messages)");
+        }
+
+        // connection could be recovered before message was added
+        if (_connection.isOpen()) outbox.replay();
+    }
+
+    private void publishFromOutbox(Outbox.Entry entry) throws Exception {
+        ChannelPool pool = _channelPool;
+        Channel channel = checkoutChannel(pool, false);
+        try {
+            channel.basicPublish(entry.exchange, entry.routingKey, entry.props, entry.body);
+        } finally {
+            checkinChannel(pool, channel);
+        }
+    }
+
+    /// directory - folder for segment files of spool
+    /// segmentSize - size of one segment file in bytes, message must fit in one segment
+    /// After enable sendMessage appends messages to spool, background forwarder publishes them with confirms.
+    /// Messages not confirmed before close are forwarded after next enableSpool with the same directory.
+    /// Spool survives crash of JVM, crash of OS may lose messages appended during last second.
+    public boolean enableSpool(String directory, int segmentSize) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::enableSpool");
+            if (_spool != null) throw new IllegalStateException("Spool is already enabled");
+
+            _spool = new MessageSpool(directory, segmentSize, _connection);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Stop forwarder of spool, not forwarded messages stay in spool files
+    public boolean disableSpool() throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::disableSpool");
+            MessageSpool spool = _spool;
+            _spool = null;
+
+            if (spool != null) spool.close();
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Return: count of messages in spool not confirmed by broker yet
+    public long getSpoolCount() {
+        MessageSpool spool = _spool;
+        return (spool != null ? spool.getCount() : 0);
+    }
+
+    /// Return: String array by format "spool.key=value": not confirmed messages, records moved to quarantine file and segment files renamed to *.bad and reason of last one
+    public String[] getSpoolCounts() {
+        MessageSpool spool = _spool;
+        return (spool != null ? spool.getCounts() : new String[0]);
+    }
+
+    /// Return: channel from pool or main channel when pool is off or mainChannel is true
+    /// Parameters: ChannelPool pool - value of _channelPool read by caller, channel is returned to the same pool
+    private Channel checkoutChannel(ChannelPool pool, boolean mainChannel) throws Exception {
+        if (pool == null || mainChannel) return _channel;
+
+        // pool was replaced by setChannelPool meanwhile
+        Channel channel = pool.checkout();
+        return (channel != null ? channel : _channel);
+    }
+
+    /// Parameters: ChannelPool pool - the same as for checkoutChannel, Channel channel
+    private void checkinChannel(ChannelPool pool, Channel channel) {
+        if (channel != _channel && pool != null) pool.checkin(channel);
+    }
+
     /// Parameters: APIMessage message
     public void sendMessage(APIMessage message) throws Exception {
         sendMessageToQueue(_queue, message);
@@ -169,87 +481,1750 @@ public class API {
 
     /// Parameters: String queue, APIMessage message
     public void sendMessageToQueue(String queue, APIMessage message) throws Exception {
+        long started = System.nanoTime();
+
+        _lastError.clear();
+        try {
+            RateLimiter limiter = _rateLimiter;
+            if (limiter != null) {
+                _lastError.setHeader("API::rateLimit");
+                limiter.acquire();
+            }
+
+            publishMessage(queue, message);
+            _stats.published(message.getBodyLength(), System.nanoTime() - started);
+        } catch ( Exception ex) {
+            _stats.publishError();
+            _lastError.setMessage(ex.getMessage());
+        }
+    }
+
+    /// Publish message to spool, outbox or broker
+    private void publishMessage(String queue, APIMessage message) throws Exception {
+        String compression = _compression;
+
+        // body already encoded by caller is sent as is
+        if (compression != null && message.getBodyLength() >= _compressionThreshold && (message.ContentEncoding == null || message.ContentEncoding.isEmpty())) {
+            _lastError.setHeader("API::compress");
+            byte[] compressed = message.compressBody(compression, _compressionLevel);
+
+            _lastError.setHeader("API::createProperties");
+            publishMessage(queue, message.createProperties(compression), compressed);
+            return;
+        }
+
+        _lastError.setHeader("API::createProperties");
+        AMQP.BasicProperties props = message.createProperties();
+
+        publishMessage(queue, props, message.getBodyStream());
+    }
+
+    /// Publish properties and body to spool, outbox or broker
+    private void publishMessage(String queue, AMQP.BasicProperties props, byte[] body) throws Exception {
+        MessageSpool spool = _spool;
+        if (spool != null) {
+            _lastError.setHeader("API::sendMessageToSpool");
+            spool.append(_exchange, queue, props, body);
+            return;
+        }
+
+        _lastError.setHeader("API::sendMessageToQueue");
+        Outbox outbox = _outbox;
+        if (outbox != null && (!outbox.isEmpty() || !_connection.isOpen())) {
+            // keep order: while outbox is not empty new messages wait behind old ones
+            sendMessageToOutbox(new Outbox.Entry(_exchange, queue, props, body));
+            return;
+        }
+
+        ChannelPool pool = _channelPool;
+        Channel channel = checkoutChannel(pool, false);
+        try {
+            channel.basicPublish(_exchange, queue, props, body);
+        } catch (Exception ex) {
+            if (outbox == null || _connection.isOpen()) throw ex;
+
+            // connection failed while publishing
+            sendMessageToOutbox(new Outbox.Entry(_exchange, queue, props, body));
+        } finally {
+            checkinChannel(pool, channel);
+        }
+    }
+
+    /// rate - maximum messages per second of sendMessage and trySend (0 - no limit), sendMessage waits for token, trySend fails
+    /// burst - count of messages sent at once after idle time
+    /// window - maximum count of trySend messages not confirmed by broker (0 - trySend publishes without confirms)
+    public boolean setFlowControl(double rate, int burst, int window) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setFlowControl");
+            if (rate < 0) throw new IllegalArgumentException("Rate must not be negative");
+            if (window < 0) throw new IllegalArgumentException("Window must not be negative");
+
+            _rateLimiter = (rate > 0 ? new RateLimiter(rate, burst) : null);
+
+            synchronized (_flowLock) {
+                _sendWindow = window;
+
+                // channel will be recreated with new window on next trySend
+                closeFlowChannel();
+            }
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Return: SEND_OK if trySend would publish message now, otherwise SEND_BLOCKED, SEND_RATE_LIMITED, SEND_WINDOW_FULL or SEND_CLOSED
+    /// Nothing is reserved, result may change before next trySend
+    public int canSend() {
+        if (!_connection.isOpen()) return SEND_CLOSED;
+        if (_stats.isBlocked()) return SEND_BLOCKED;
+
+        // the same order as trySend
+        ConfirmTracker tracker = _flowTracker;
+        if (tracker != null && tracker.available() == 0) return SEND_WINDOW_FULL;
+
+        RateLimiter limiter = _rateLimiter;
+        if (limiter != null && !limiter.canAcquire()) return SEND_RATE_LIMITED;
+
+        return SEND_OK;
+    }
+
+    /// Parameters: APIMessage message
+    /// Return: see trySendToQueue
+    public int trySend(APIMessage message) throws Exception {
+        return trySendToQueue(_queue, message);
+    }
+
+    /// Parameters: String queue, APIMessage message
+    /// Return: SEND_OK if message is published, SEND_BLOCKED if broker blocked connection (memory or disk alarm),
+    /// SEND_RATE_LIMITED, SEND_WINDOW_FULL if window of not confirmed messages is full, SEND_CLOSED, SEND_ERROR (see LastError)
+    /// Never waits: message is published directly on own channel, confirms of broker are counted in stats
+    public int trySendToQueue(String queue, APIMessage message) throws Exception {
+        long started = System.nanoTime();
+
         _lastError.clear();
         try {
+            _lastError.setHeader("API::trySend");
+            if (!_connection.isOpen()) return SEND_CLOSED;
+
+            // basicPublish of blocked connection waits until broker unblocks it
+            if (_stats.isBlocked()) return SEND_BLOCKED;
+
             _lastError.setHeader("API::createProperties");
             AMQP.BasicProperties props = message.createProperties();
 
-            _lastError.setHeader("API::sendMessageToQueue");
-            _channel.basicPublish(_exchange, queue, props, message.getBodyStream());
-        } catch ( Exception ex) {
+            synchronized (_flowLock) {
+                _lastError.setHeader("API::createChannel");
+                Channel channel = getFlowChannel();
+                ConfirmTracker tracker = _flowTracker;
+
+                // token is taken only when message is really published, full window does not spend it
+                if (tracker != null && !tracker.tryAcquire()) return SEND_WINDOW_FULL;
+
+                RateLimiter limiter = _rateLimiter;
+                if (limiter != null && !limiter.tryAcquire()) {
+                    if (tracker != null) tracker.release();
+                    return SEND_RATE_LIMITED;
+                }
+
+                long seqNo = channel.getNextPublishSeqNo();
+                if (tracker != null) tracker.register(seqNo, ack -> _stats.confirmed(ack, System.nanoTime() - started));
+
+                _lastError.setHeader("API::trySend");
+                try {
+                    channel.basicPublish(_exchange, queue, props, message.getBodyStream());
+                } catch (Exception ex) {
+                    // message is not sent, confirm never comes and its place in window would be lost
+                    if (tracker != null) tracker.deregister(seqNo);
+                    throw ex;
+                }
+            }
+
+            _stats.published(message.getBodyLength(), System.nanoTime() - started);
+            return SEND_OK;
+        } catch (Exception ex) {
+            _stats.publishError();
             _lastError.setMessage(ex.getMessage());
         }
+
+        return SEND_ERROR;
     }
 
-    /// Return: APIMessage
-    public APIMessage readMessage() throws Exception {
-        return readMessageFromQueue(_queue);
+    /// Return: count of trySend messages not confirmed by broker yet
+    public int getSendWindowOutstanding() {
+        ConfirmTracker tracker = _flowTracker;
+        return (tracker != null ? tracker.outstanding() : 0);
     }
 
-    /// Parameters: String queue
-    /// Return: APIMessage
-    public APIMessage readMessageFromQueue(String queue) throws Exception {
-        boolean autoAck = true;
-        APIMessage message = new APIMessage();
+    // guarded by _flowLock
+    private Channel getFlowChannel() throws Exception {
+        if (_flowChannel != null && _flowChannel.isOpen()) return _flowChannel;
+
+        Channel channel = _connection.createChannel();
+        ConfirmTracker tracker = null;
+
+        if (_sendWindow > 0) {
+            final ConfirmTracker channelTracker = new ConfirmTracker(_sendWindow);
+            channel.addConfirmListener(channelTracker);
+            channel.addShutdownListener(cause -> channelTracker.failAll());
+            channel.confirmSelect();
+            tracker = channelTracker;
+        }
+
+        _flowChannel = channel;
+        _flowTracker = tracker;
+
+        return channel;
+    }
+
+    // guarded by _flowLock
+    private void closeFlowChannel() {
+        Channel channel = _flowChannel;
+        _flowChannel = null;
+        _flowTracker = null;
+
+        try {
+            if (channel != null && channel.isOpen()) channel.close();
+        } catch ( Exception ex) {}
+    }
+
+    /// encoding - ContentEncoding of compressed bodies: gzip or deflate ("" - no compression)
+    /// threshold - minimum size of body in bytes for compression, smaller bodies are sent as is
+    /// level - level of compression from 1 (fast) to 9 (best)
+    /// decompress - true if read bodies with ContentEncoding gzip or deflate are decompressed and their ContentEncoding is cleared
+    /// sendMessage compresses only messages without ContentEncoding, message itself is not changed
+    /// Decompressed body is limited by 64 MB
+    public boolean setCompression(String encoding, int threshold, int level, boolean decompress) throws Exception {
+        return setCompression(encoding, threshold, level, decompress, DEFAULT_MAX_DECOMPRESSED_SIZE);
+    }
+
+    /// encoding, threshold, level, decompress - see above
+    /// maxDecompressedSize - maximum size of decompressed body in bytes, larger body is not read (protection from decompression bombs)
+    public boolean setCompression(String encoding, int threshold, int level, boolean decompress, int maxDecompressedSize) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setCompression");
+            boolean enabled = (encoding != null && !encoding.isEmpty());
+            if (enabled && !BodyCompressor.isSupported(encoding)) throw new IllegalArgumentException("Encoding " + encoding + " is not supported, use gzip or deflate");
+            if (level < 1 || level > 9) throw new IllegalArgumentException("Level of compression must be from 1 to 9");
+            if (maxDecompressedSize <= 0) throw new IllegalArgumentException("Maximum size of decompressed body must be greater than 0");
+
+            _compressionThreshold = Math.max(threshold, 0);
+            _compressionLevel = level;
+            _compression = (enabled ? encoding.toLowerCase() : null);
+            _maxDecompressedSize = maxDecompressedSize;
+            _decompression = decompress;
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
 
+        return _lastError.isError();
+    }
+
+    /// name - name of template
+    /// prototype - message with static properties and headers, its body, MessageId, CorrelationId and Timestamp are not used
+    public boolean registerTemplate(String name, APIMessage prototype) throws Exception {
         _lastError.clear();
         try {
-            _lastError.setHeader("API::getMessageFromQueue");
-            GetResponse response = _channel.basicGet(queue, autoAck);
-            if (response == null) return message;
+            _lastError.setHeader("API::registerTemplate");
+            if (name == null || name.isEmpty()) throw new IllegalArgumentException("Name of template is empty");
+
+            _templates.put(name, new APIMessageTemplate(prototype));
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
 
-            _lastError.setHeader("API::getProps");
-            AMQP.BasicProperties props = response.getProps();
+        return _lastError.isError();
+    }
 
-            message.MessageCount = response.getMessageCount();
+    /// Parameters: String name
+    public boolean removeTemplate(String name) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::removeTemplate");
+            if (_templates.remove(name) == null) throw new IllegalArgumentException("Template " + name + " is not registered");
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
 
-            // BasicProperties
-            message.ContentType = props.getContentType();
-            message.ContentEncoding = props.getContentEncoding();
-            message.CorrelationId = props.getCorrelationId();
-            message.ReplyTo = props.getReplyTo();
-            message.Expiration = props.getExpiration();
-            message.MessageId = props.getMessageId();
-            message.Type = props.getType();
-            message.UserId = props.getUserId();
-            message.AppId = props.getAppId();
-            message.ClusterId = props.getClusterId();
-            message.DeliveryMode = props.getDeliveryMode();
-            message.Priority = props.getPriority() ;
+        return _lastError.isError();
+    }
 
-            Date timestamp = props.getTimestamp();
-            if (timestamp != null) message.setTimestampMilliSeconds(timestamp.getTime());
-            else message.setTimestamp(null);
+    /// Parameters: String template, String queue, APIMessage message - only body, MessageId, CorrelationId and Timestamp are sent
+    public void sendMessageByTemplate(String template, String queue, APIMessage message) throws Exception {
+        long started = System.nanoTime();
 
-            // fill headers
-            _lastError.setHeader("API::getMessageFromQueue.setHeaders");
-            message.setHeaders(props.getHeaders());
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::createProperties");
+            AMQP.BasicProperties props = getTemplate(template).createProperties(message.MessageId, message.CorrelationId, message.getTimestampDate());
 
-            // Body
-            message.setBodyStream(response.getBody());
+            publishMessage(queue, props, message.getBodyStream());
+            _stats.published(message.getBodyLength(), System.nanoTime() - started);
         } catch ( Exception ex) {
+            _stats.publishError();
             _lastError.setMessage(ex.getMessage());
         }
-
-        return message;
     }
 
-    public Boolean isOpen()
-    {
-        boolean result = false;
+    /// Parameters: String template, String queue, String body, String messageId, String correlationId, long timestampMilliSeconds (0 - no timestamp)
+    public void sendBodyByTemplate(String template, String queue, String body, String messageId, String correlationId, long timestampMilliSeconds) throws Exception {
+        long started = System.nanoTime();
 
         _lastError.clear();
         try {
-            _lastError.setHeader("API::isOpen");
-            result = _connection != null && _connection.isOpen();
+            _lastError.setHeader("API::createProperties");
+            AMQP.BasicProperties props = getTemplate(template).createProperties(messageId, correlationId, (timestampMilliSeconds != 0 ? new Date(timestampMilliSeconds) : null));
+            byte[] bytes = (body == null || body.isEmpty() ? APIMessage.EMPTY_BODY : body.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+
+            publishMessage(queue, props, bytes);
+            _stats.published(bytes.length, System.nanoTime() - started);
         } catch ( Exception ex) {
+            _stats.publishError();
             _lastError.setMessage(ex.getMessage());
         }
+    }
 
-        return result;
+    private APIMessageTemplate getTemplate(String name) {
+        APIMessageTemplate template = _templates.get(name);
+        if (template == null) throw new IllegalArgumentException("Template " + name + " is not registered");
+
+        return template;
     }
 
-    public void close()throws Exception {
+    /// capacity - maximum count of messages waiting for background publish
+    /// confirms - true if message is completed by publisher confirm of broker, false - after it is written to socket
+    public boolean startAsyncSender(int capacity, boolean confirms) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::startAsyncSender");
+            if (_asyncSender != null) throw new IllegalStateException("Async sender is already started");
+            if (capacity <= 0) throw new IllegalArgumentException("Capacity must be greater than 0");
+
+            _asyncSender = new AsyncSender(_connection, capacity, confirms, _stats);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Stop background sender, messages not published yet are completed with error
+    public boolean stopAsyncSender() throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::stopAsyncSender");
+            AsyncSender sender = _asyncSender;
+            _asyncSender = null;
+
+            if (sender != null) sender.stop();
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: APIMessage message
+    /// Return: ticket id for pollCompletions/awaitTicket, 0 if message was not accepted
+    public long sendMessageAsync(APIMessage message) throws Exception {
+        return sendMessageToQueueAsync(_queue, message);
+    }
+
+    /// Parameters: String queue, APIMessage message - properties and body are taken at once, message may be changed after return
+    /// Return: ticket id for pollCompletions/awaitTicket, 0 if message was not accepted
+    public long sendMessageToQueueAsync(String queue, APIMessage message) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::sendMessageAsync");
+            AsyncSender sender = _asyncSender;
+            if (sender == null) throw new IllegalStateException("Async sender is not started");
+
+            _lastError.setHeader("API::createProperties");
+            AMQP.BasicProperties props = message.createProperties();
+
+            _lastError.setHeader("API::sendMessageAsync");
+            return sender.send(_exchange, queue, props, message.getBodyStream());
+        } catch (Exception ex) {
+            _stats.publishError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return 0;
+    }
+
+    /// Return: String array of completed tickets by format "ticket=OK" or "ticket=ERROR message", every ticket is returned once
+    public String[] pollCompletions() throws Exception {
+        List<String> completions = new ArrayList<>();
+
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::pollCompletions");
+            AsyncSender sender = _asyncSender;
+            if (sender == null) throw new IllegalStateException("Async sender is not started");
+
+            for (AsyncSender.Ticket ticket : sender.pollCompletions()) completions.add(ticket.id + "=" + (ticket.isOk() ? "OK" : "ERROR " + ticket.getError()));
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return completions.toArray(new String[0]);
+    }
+
+    /// Parameters: long ticket, long timeout - milliseconds
+    /// Return: true if message is published (confirmed), false if it failed (see LastError) or is not completed before timeout
+    public boolean awaitTicket(long ticket, long timeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::awaitTicket");
+            AsyncSender sender = _asyncSender;
+            if (sender == null) throw new IllegalStateException("Async sender is not started");
+
+            AsyncSender.Ticket item = sender.getTicket(ticket);
+            if (item == null) throw new IllegalArgumentException("Ticket " + ticket + " is unknown or already completed");
+
+            if (!item.await(timeout)) throw new TimeoutException("Ticket " + ticket + " is not completed yet");
+            sender.remove(ticket);
+
+            if (!item.isOk()) throw new java.io.IOException(item.getError());
+            return true;
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return false;
+    }
+
+    /// Return: count of async messages waiting for publish or confirm
+    public int getAsyncPending() {
+        AsyncSender sender = _asyncSender;
+        return (sender != null ? sender.getPending() : 0);
+    }
+
+    /// Parameters: APIMessage request, long timeout - milliseconds to wait for reply
+    /// Return: APIMessage reply, null if there is no reply before timeout (see LastError)
+    /// CorrelationId and ReplyTo of request are set by call, replier must copy CorrelationId to reply and publish it to ReplyTo
+    public APIMessage call(APIMessage request, long timeout) throws Exception {
+        return callQueue(_queue, request, timeout);
+    }
+
+    /// Parameters: String queue, APIMessage request, long timeout - milliseconds to wait for reply
+    /// Return: APIMessage reply, null if there is no reply before timeout (see LastError)
+    public APIMessage callQueue(String queue, APIMessage request, long timeout) throws Exception {
+        long call = callQueueAsync(queue, request, timeout);
+        if (call == 0) return null;
+
+        APIMessage reply = awaitReply(call, timeout);
+
+        // call is forgotten after timeout, late reply is dropped
+        if (reply == null) getRpcClient().remove(call);
+
+        return reply;
+    }
+
+    /// Parameters: APIMessage request, long timeout - milliseconds to wait for reply
+    /// Return: call id for awaitReply, 0 if request was not sent
+    public long callAsync(APIMessage request, long timeout) throws Exception {
+        return callQueueAsync(_queue, request, timeout);
+    }
+
+    /// Parameters: String queue, APIMessage request, long timeout - milliseconds, call fails with timeout error after it
+    /// Return: call id for awaitReply, 0 if request was not sent
+    /// Reply of every call must be taken by awaitReply or cancelled by cancelCall
+    public long callQueueAsync(String queue, APIMessage request, long timeout) throws Exception {
+        long started = System.nanoTime();
+
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::createProperties");
+            AMQP.BasicProperties props = request.createProperties();
+
+            _lastError.setHeader("API::call");
+            RpcClient.Call call = getRpcClient().call(_exchange, queue, props, request.getBodyStream(), timeout);
+            _stats.published(request.getBodyLength(), System.nanoTime() - started);
+
+            return call.id;
+        } catch (Exception ex) {
+            _stats.publishError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return 0;
+    }
+
+    /// Parameters: long call - id returned by callAsync, long timeout - milliseconds
+    /// Return: APIMessage reply, null if call failed (see LastError) or reply is not received before timeout
+    public APIMessage awaitReply(long call, long timeout) throws Exception {
+        long started = System.nanoTime();
+
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::awaitReply");
+            RpcClient client = getRpcClient();
+
+            RpcClient.Call item = client.getCall(call);
+            if (item == null) throw new IllegalArgumentException("Call " + call + " is unknown or its reply is already taken");
+
+            if (!item.await(timeout)) throw new TimeoutException("Reply of call " + call + " is not received yet");
+            client.remove(call);
+
+            if (item.getError() != null) throw new java.io.IOException(item.getError());
+
+            APIMessage reply = newMessage();
+            fillMessage(reply, item.getEnvelope(), item.getProps(), item.getBody());
+            _stats.read(reply.getBodyLength());
+            _stats.readLatency(System.nanoTime() - started);
+
+            return reply;
+        } catch (Exception ex) {
+            _stats.readError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return null;
+    }
+
+    /// Parameters: long call - id returned by callAsync, reply received later is dropped
+    public boolean cancelCall(long call) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::cancelCall");
+            getRpcClient().remove(call);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Return: count of calls waiting for reply
+    public int getCallsPending() {
+        RpcClient client = _rpcClient;
+        return (client != null ? client.getPending() : 0);
+    }
+
+    private RpcClient getRpcClient() {
+        RpcClient client = _rpcClient;
+        if (client != null) return client;
+
+        synchronized (this) {
+            if (_rpcClient == null) _rpcClient = new RpcClient(_connection);
+
+            return _rpcClient;
+        }
+    }
+
+    /// prefetch - maximum number of messages broker pushes ahead of readMessage (size of local buffer)
+    /// readTimeout - milliseconds readMessage waits for a message when local buffer is empty (0 - do not wait)
+    /// After start readMessage takes messages from local buffer instead of basicGet
+    public boolean startConsumer(int prefetch, long readTimeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::startConsumer");
+            if (_consumer != null) throw new IllegalStateException("Consumer is already started");
+            if (prefetch <= 0) throw new IllegalArgumentException("Prefetch must be greater than 0");
+
+            _lastError.setHeader("API::createChannel");
+            if (!_channel.isOpen()) _channel = _connection.createChannel();
+
+            _lastError.setHeader("API::basicQos");
+            _channel.basicQos(prefetch);
+
+            _lastError.setHeader("API::basicConsume");
+            limitAckBatch(prefetch);
+            BufferedConsumer consumer = new BufferedConsumer(_channel, _queue, prefetch, readTimeout, (_manualAck ? getAckBatcher() : null));
+            try {
+                consumer.start();
+            } catch (Exception ex) {
+                limitAckBatch(Integer.MAX_VALUE);
+                throw ex;
+            }
+
+            _consumer = consumer;
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// queues - comma separated queues with optional weights by format "queue:weight", for example "orders:3,audit:1"
+    /// priority, prefetch, readTimeout - see below
+    public boolean subscribe(String queues, boolean priority, int prefetch, long readTimeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::subscribe");
+            if (queues == null || queues.trim().isEmpty()) throw new IllegalArgumentException("Queues are not defined");
+
+            String[] items = queues.split(",");
+            String[] names = new String[items.length];
+            int[] weights = new int[items.length];
+            for (int i = 0; i < items.length; i++) {
+                String item = items[i].trim();
+                int pos = item.lastIndexOf(':');
+
+                names[i] = (pos >= 0 ? item.substring(0, pos).trim() : item);
+                weights[i] = (pos >= 0 ? Integer.parseInt(item.substring(pos + 1).trim()) : 1);
+            }
+
+            return subscribe(names, weights, priority, prefetch, readTimeout);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// queues - names of queues consumed over one channel, their messages are merged into one local buffer
+    /// weights - share of readMessage for every queue when several queues have messages (null - equal shares)
+    /// priority - true if messages are taken from the first queue having them in order of queues, weights are ignored
+    /// prefetch - maximum number of messages broker pushes ahead of readMessage for every queue
+    /// readTimeout - milliseconds readMessage waits for a message when local buffer is empty (0 - do not wait)
+    /// After subscribe readMessage takes messages from local buffer, APIMessage.Queue is the queue message came from
+    public boolean subscribe(String[] queues, int[] weights, boolean priority, int prefetch, long readTimeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::subscribe");
+            if (_consumer != null) throw new IllegalStateException("Consumer is already started");
+            if (queues == null || queues.length == 0) throw new IllegalArgumentException("Queues are not defined");
+            if (weights != null && weights.length != queues.length) throw new IllegalArgumentException("Count of weights must be equal to count of queues");
+            if (prefetch <= 0) throw new IllegalArgumentException("Prefetch must be greater than 0");
+
+            for (int i = 0; i < queues.length; i++) {
+                if (queues[i] == null || queues[i].isEmpty()) throw new IllegalArgumentException("Name of queue is empty");
+                if (weights != null && weights[i] <= 0) throw new IllegalArgumentException("Weight of queue " + queues[i] + " must be greater than 0");
+            }
+
+            _lastError.setHeader("API::createChannel");
+            if (!_channel.isOpen()) _channel = _connection.createChannel();
+
+            _lastError.setHeader("API::basicQos");
+            _channel.basicQos(prefetch);
+
+            _lastError.setHeader("API::basicConsume");
+            limitAckBatch(prefetch);
+            MultiQueueConsumer consumer = new MultiQueueConsumer(_channel, queues, weights, priority, prefetch, readTimeout, (_manualAck ? getAckBatcher() : null));
+            try {
+                consumer.start();
+            } catch (Exception ex) {
+                // consumers of queues subscribed before error are cancelled
+                limitAckBatch(Integer.MAX_VALUE);
+                consumer.stop();
+                throw ex;
+            }
+
+            _consumer = consumer;
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Return: String array by format "queue.key=value": weight, taken and buffered messages of every subscribed queue
+    public String[] getSubscriptionCounts() {
+        DeliveryBuffer consumer = _consumer;
+        if (consumer instanceof MultiQueueConsumer) return ((MultiQueueConsumer) consumer).getCounts();
+
+        return new String[0];
+    }
+
+    /// lanes - count of handler threads, messages with the same key are handled by one thread in order of delivery
+    /// prefetch - maximum count of messages delivered and not acked yet
+    /// key - CorrelationId, MessageId, Type, AppId, UserId or name of header ("" - messages are not ordered)
+    /// handler - called for every message, message is acked after handler returns and rejected if handler throws exception
+    /// requeueOnError - true if rejected message is returned to queue, false - it is dropped or dead-lettered
+    public boolean startDispatcher(int lanes, int prefetch, String key, APIMessageHandler handler, boolean requeueOnError) throws Exception {
+        return startDispatcher(lanes, prefetch, messageKey(key), handler, requeueOnError);
+    }
+
+    /// lanes, prefetch, handler, requeueOnError - see above
+    /// key - function returning key of ordering for message (null result - message is not ordered)
+    public boolean startDispatcher(int lanes, int prefetch, Function<APIMessage, String> key, APIMessageHandler handler, boolean requeueOnError) throws Exception {
+        _lastError.clear();
+        try {
+            synchronized (_dispatcherLock) {
+                _lastError.setHeader("API::startDispatcher");
+                if (_dispatcher != null) throw new IllegalStateException("Dispatcher is already started");
+                if (lanes <= 0) throw new IllegalArgumentException("Count of lanes must be greater than 0");
+                if (prefetch <= 0) throw new IllegalArgumentException("Prefetch must be greater than 0");
+                if (handler == null) throw new IllegalArgumentException("Handler is not defined");
+
+                // acks are sent by handler threads, channel is not shared with other calls
+                _lastError.setHeader("API::createChannel");
+                Channel channel = _connection.createChannel();
+                Dispatcher dispatcher = null;
+                try {
+                    _lastError.setHeader("API::basicQos");
+                    channel.basicQos(prefetch);
+
+                    _lastError.setHeader("API::basicConsume");
+                    dispatcher = new Dispatcher(channel, lanes, key, handler, (envelope, props, body) -> {
+                        APIMessage message = new APIMessage();
+                        fillMessage(message, envelope, props, body);
+                        message.Queue = _queue;
+                        return message;
+                    }, requeueOnError, _stats);
+                    dispatcher.start(_queue);
+                } catch (Exception ex) {
+                    // threads of lanes and channel would be left behind
+                    try {
+                        if (dispatcher != null) {
+                            dispatcher.stop(0);
+                        } else if (channel.isOpen()) {
+                            channel.close();
+                        }
+                    } catch (Exception e) {}
+                    throw ex;
+                }
+
+                _dispatcher = dispatcher;
+            }
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: long timeout - milliseconds to wait for handling of delivered messages
+    /// Messages not handled before timeout are returned to queue
+    public boolean stopDispatcher(long timeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::stopDispatcher");
+            Dispatcher dispatcher;
+            synchronized (_dispatcherLock) {
+                dispatcher = _dispatcher;
+                _dispatcher = null;
+            }
+
+            if (dispatcher != null && !dispatcher.stop(timeout)) throw new TimeoutException("Handlers are not completed before timeout");
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Return: count of messages delivered to dispatcher and not handled yet
+    public int getDispatcherPending() {
+        Dispatcher dispatcher = _dispatcher;
+        return (dispatcher != null ? dispatcher.getPending() : 0);
+    }
+
+    private static Function<APIMessage, String> messageKey(String key) {
+        if (key == null || key.isEmpty()) return null;
+
+        switch (key) {
+            case "CorrelationId": return message -> message.CorrelationId;
+            case "MessageId": return message -> message.MessageId;
+            case "Type": return message -> message.Type;
+            case "AppId": return message -> message.AppId;
+            case "UserId": return message -> message.UserId;
+            default: return message -> {
+                Object value = message.getHeadersMap().get(key);
+                return (value != null ? value.toString() : null);
+            };
+        }
+    }
+
+    /// manualAck - true if messages read by readMessage must be acknowledged by ack/nack/ackUpTo, set before startConsumer
+    /// batchSize - count of acks collected before they are sent to broker (1 - every ack is sent at once),
+    /// it is limited by prefetch of started consumer and collected acks are sent when consumer has no messages to read
+    /// flushInterval - milliseconds between sending of collected acks by timer (0 - no timer)
+    public boolean setManualAck(boolean manualAck, int batchSize, long flushInterval) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setManualAck");
+            if (_consumer != null) throw new IllegalStateException("Consumer is already started");
+
+            synchronized (this) {
+                if (_ackTimer != null) _ackTimer.shutdown();
+                _ackTimer = null;
+
+                _manualAck = manualAck;
+                _ackBatchSize = batchSize;
+                if (_ackBatcher != null) _ackBatcher.setBatchSize(ackBatchSize());
+
+                if (manualAck && flushInterval > 0) {
+                    _ackTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "API-ack-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    _ackTimer.scheduleWithFixedDelay(this::flushAcksByTimer, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: long deliveryTag - APIMessage.DeliveryTag of message read with manual ack
+    public boolean ack(long deliveryTag) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::ack");
+            ackMessage(deliveryTag);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: long deliveryTag, boolean requeue - true if message must be returned to queue
+    public boolean nack(long deliveryTag, boolean requeue) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::nack");
+            getAckBatcher().nack(deliveryTag, requeue);
+
+            // message is not handled, so it is not duplicate when it comes again
+            DedupCache dedup = _dedup;
+            if (dedup != null) dedup.rejected(deliveryTag);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: long deliveryTag - ack all messages up to and including this one by single frame
+    public boolean ackUpTo(long deliveryTag) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::ackUpTo");
+            getAckBatcher().ackUpTo(deliveryTag);
+
+            DedupCache dedup = _dedup;
+            if (dedup != null) dedup.ackedUpTo(deliveryTag);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Send collected acks to broker
+    public boolean flushAcks() throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::flushAcks");
+            AckBatcher batcher = _ackBatcher;
+            if (batcher != null) batcher.flush();
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    private void flushAcksByTimer() {
+        try {
+            AckBatcher batcher = _ackBatcher;
+            if (batcher != null) batcher.flush();
+        } catch (Exception ex) {}
+    }
+
+    /// Ack message read with manual ack, its MessageId is remembered for deduplication
+    private void ackMessage(long deliveryTag) throws Exception {
+        getAckBatcher().ack(deliveryTag);
+
+        DedupCache dedup = _dedup;
+        if (dedup != null) dedup.acked(deliveryTag);
+    }
+
+    // guarded by this
+    private int ackBatchSize() {
+        return Math.min(_ackBatchSize, _ackBatchLimit);
+    }
+
+    /// Parameters: int prefetch - of started consumer, Integer.MAX_VALUE - consumer is stopped
+    private synchronized void limitAckBatch(int prefetch) {
+        _ackBatchLimit = prefetch;
+        if (_ackBatcher != null) _ackBatcher.setBatchSize(ackBatchSize());
+    }
+
+    /// Return: AckBatcher of current channel, delivery tags of previous channel are not valid anymore
+    private synchronized AckBatcher getAckBatcher() {
+        if (_ackBatcher == null || _ackBatcher.getChannel() != _channel) {
+            _ackBatcher = new AckBatcher(_channel, ackBatchSize());
+
+            // messages read on previous channel are redelivered with new tags
+            DedupCache dedup = _dedup;
+            if (dedup != null) dedup.clearPending();
+        }
+
+        return _ackBatcher;
+    }
+
+    /// Cancel consumer or subscription, messages left in local buffer are returned to queues
+    public boolean stopConsumer() throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::stopConsumer");
+            if (_consumer != null) {
+                DeliveryBuffer consumer = _consumer;
+                _consumer = null;
+                limitAckBatch(Integer.MAX_VALUE);
+                consumer.stop();
+            }
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// window - maximum count of published and not confirmed messages, publishing waits while window is full
+    /// timeout - milliseconds to wait for place in window and for confirms of batch
+    public boolean setConfirmWindow(int window, long timeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setConfirmWindow");
+            if (window <= 0) throw new IllegalArgumentException("Window must be greater than 0");
+
+            synchronized (_confirmLock) {
+                _confirmWindow = window;
+                _confirmTimeout = timeout;
+
+                // channel will be recreated with new window on next publish
+                closeConfirmChannel();
+            }
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: APIMessage[] batch
+    /// Return: boolean[] - true for every message confirmed (ack) by broker
+    public boolean[] sendMessages(APIMessage[] batch) throws Exception {
+        return sendMessagesToQueue(_queue, batch);
+    }
+
+    /// Parameters: String queue, APIMessage[] batch
+    /// Return: boolean[] - true for every message confirmed (ack) by broker
+    /// Messages are published one after another without waiting, confirms are waited once for whole batch
+    public boolean[] sendMessagesToQueue(String queue, APIMessage[] batch) throws Exception {
+        final boolean[] results = new boolean[batch == null ? 0 : batch.length];
+
+        _lastError.clear();
+        if (results.length == 0) return results;
+
+        try {
+            synchronized (_confirmLock) {
+                _lastError.setHeader("API::confirmSelect");
+                Channel channel = getConfirmChannel();
+                ConfirmTracker tracker = _confirmTracker;
+
+                final CountDownLatch latch = new CountDownLatch(results.length);
+
+                // results are returned to caller, so confirms coming after timeout or error must not change them
+                final boolean[] finished = {false};
+                try {
+                    for (int i = 0; i < batch.length; i++) {
+                        _lastError.setHeader("API::createProperties");
+                        AMQP.BasicProperties props = batch[i].createProperties();
+
+                        _lastError.setHeader("API::sendMessages");
+                        if (!tracker.acquire(_confirmTimeout)) throw new TimeoutException("Timeout waiting for publisher confirms, window is full");
+
+                        final int index = i;
+                        final long started = System.nanoTime();
+                        long seqNo = channel.getNextPublishSeqNo();
+                        tracker.register(seqNo, ack -> {
+                            _stats.confirmed(ack, System.nanoTime() - started);
+                            synchronized (results) {
+                                if (!finished[0]) results[index] = ack;
+                            }
+                            latch.countDown();
+                        });
+
+                        try {
+                            channel.basicPublish(_exchange, queue, props, batch[i].getBodyStream());
+                        } catch (Exception ex) {
+                            // message is not published, its place in window is given back
+                            tracker.deregister(seqNo);
+                            throw ex;
+                        }
+                        _stats.published(batch[i].getBodyLength(), System.nanoTime() - started);
+                    }
+
+                    _lastError.setHeader("API::waitForConfirms");
+                    if (!latch.await(_confirmTimeout, TimeUnit.MILLISECONDS)) throw new TimeoutException("Timeout waiting for publisher confirms");
+                } finally {
+                    synchronized (results) {
+                        finished[0] = true;
+                    }
+                }
+            }
+
+            int nacked = 0;
+            for (boolean ack : results) if (!ack) nacked++;
+
+            if (nacked > 0) _lastError.setMessage(nacked + " of " + results.length + " messages were not confirmed by broker");
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return results;
+    }
+
+    /// Return: confirm-enabled channel, creates it if it is closed
+    /// Call with _confirmLock
+    private Channel getConfirmChannel() throws Exception {
+        if (_confirmChannel != null && _confirmChannel.isOpen()) return _confirmChannel;
+
+        final ConfirmTracker tracker = new ConfirmTracker(_confirmWindow);
+
+        Channel channel = _connection.createChannel();
+        channel.addConfirmListener(tracker);
+        channel.addShutdownListener(cause -> tracker.failAll());
+        channel.confirmSelect();
+
+        _confirmChannel = channel;
+        _confirmTracker = tracker;
+
+        return channel;
+    }
+
+    /// Call with _confirmLock
+    private void closeConfirmChannel() {
+        Channel channel = _confirmChannel;
+        _confirmChannel = null;
+        _confirmTracker = null;
+
+        try {
+            if (channel != null && channel.isOpen()) channel.close();
+        } catch ( Exception ex) {}
+    }
+
+    /// Return: APIMessage
+    public APIMessage readMessage() throws Exception {
+        APIMessage message = newMessage();
+        readMessageInto(message);
+
+        return message;
+    }
+
+    /// Parameters: APIMessage target - filled by read message, cleared if there is no message
+    /// Return: true if message was read
+    public boolean readMessageInto(APIMessage target) throws Exception {
+        DeliveryBuffer consumer = _consumer;
+        if (consumer != null) return readMessageFromConsumer(consumer, target);
+
+        return readMessageFromQueueInto(_queue, target);
+    }
+
+    /// Fill message from local buffer of consumer
+    private boolean readMessageFromConsumer(DeliveryBuffer consumer, APIMessage message) throws Exception {
+        return readMessageFromConsumer(consumer, message, -1);
+    }
+
+    /// Fill message from local buffer of consumer, timeout - milliseconds to wait (-1 - readTimeout of consumer)
+    private boolean readMessageFromConsumer(DeliveryBuffer consumer, APIMessage message, long timeout) throws Exception {
+        long started = System.nanoTime();
+        long wait = (timeout < 0 ? consumer.readTimeout() : timeout);
+
+        _lastError.clear();
+        try {
+            // dropped duplicate is replaced by next message
+            while (true) {
+                message.clear();
+
+                _lastError.setHeader("API::readMessageFromConsumer");
+
+                // dropped duplicates do not prolong waiting
+                long left = wait - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                Delivery delivery = consumer.take(Math.max(left, 0));
+                _stats.readLatency(System.nanoTime() - started);
+
+                if (delivery == null) {
+                    _stats.emptyPoll();
+                    return false;
+                }
+
+                // broker does not send message count with delivery, so return count of messages left in local buffer
+                message.MessageCount = consumer.size();
+
+                _lastError.setHeader("API::getProps");
+                fillMessage(message, delivery.getEnvelope(), delivery.getProperties(), delivery.getBody());
+                message.Queue = consumer.queue(delivery);
+                _stats.read(message.getBodyLength());
+
+                if (!dropDuplicate(message)) return true;
+            }
+        } catch ( Exception ex) {
+            _stats.readError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return false;
+    }
+
+    /// Parameters: String queue
+    /// Return: APIMessage
+    public APIMessage readMessageFromQueue(String queue) throws Exception {
+        APIMessage message = newMessage();
+        readMessageFromQueueInto(queue, message);
+
+        return message;
+    }
+
+    /// Parameters: String queue, APIMessage target - filled by read message, cleared if there is no message
+    /// Return: true if message was read
+    public boolean readMessageFromQueueInto(String queue, APIMessage target) throws Exception {
+        boolean autoAck = !_manualAck;
+        long started = System.nanoTime();
+
+        _lastError.clear();
+        try {
+            // dropped duplicate is replaced by next message
+            while (true) {
+                target.clear();
+
+                _lastError.setHeader("API::getMessageFromQueue");
+                GetResponse response;
+                ChannelPool pool = _channelPool;
+                Channel channel = checkoutChannel(pool, !autoAck);
+                try {
+                    response = channel.basicGet(queue, autoAck);
+                } finally {
+                    checkinChannel(pool, channel);
+                }
+                _stats.readLatency(System.nanoTime() - started);
+
+                if (response == null) {
+                    _stats.emptyPoll();
+                    return false;
+                }
+
+                if (!autoAck) getAckBatcher().delivered(response.getEnvelope().getDeliveryTag());
+
+                target.MessageCount = response.getMessageCount();
+
+                _lastError.setHeader("API::getProps");
+                fillMessage(target, response.getEnvelope(), response.getProps(), response.getBody());
+                target.Queue = queue;
+                _stats.read(target.getBodyLength());
+
+                if (!dropDuplicate(target)) return true;
+            }
+        } catch ( Exception ex) {
+            _stats.readError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return false;
+    }
+
+    /// size - maximum count of free messages kept for reuse (0 - no pool)
+    /// With pool readMessage returns messages from pool, they are given back by releaseMessage
+    public boolean setMessagePool(int size) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setMessagePool");
+            if (size < 0) throw new IllegalArgumentException("Size of pool must not be negative");
+
+            _messagePool = (size > 0 ? new APIMessagePool(size) : null);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: APIMessage message - is not used by caller anymore, it is cleared and returned to pool
+    public void releaseMessage(APIMessage message) {
+        APIMessagePool pool = _messagePool;
+        if (pool != null) pool.release(message);
+    }
+
+    /// Return: APIMessage from pool or new one
+    private APIMessage newMessage() throws Exception {
+        APIMessagePool pool = _messagePool;
+        return (pool != null ? pool.acquire() : new APIMessage());
+    }
+
+    /// capacity - maximum count of remembered MessageId values (0 - no deduplication)
+    /// ttl - milliseconds MessageId is remembered (0 - until it is evicted by newer ones)
+    /// bloomBits - size of Bloom filter remembering evicted values for one more ttl (0 - no filter), its hits are probable duplicates
+    /// drop - true if duplicates are not returned by read methods (acked in manual ack mode), false - they get header x-duplicate
+    /// Header x-duplicate is "exact" for duplicate and "probable" for hit of Bloom filter, probable duplicates are never dropped.
+    /// In manual ack mode MessageId is remembered when message is acked, so nacked message is not duplicate when it comes again.
+    public boolean setDeduplication(int capacity, long ttl, int bloomBits, boolean drop) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setDeduplication");
+            if (capacity < 0 || capacity > (1 << 28)) throw new IllegalArgumentException("Capacity must be from 0 to " + (1 << 28));
+            if (ttl < 0) throw new IllegalArgumentException("TTL must not be negative");
+            if (bloomBits < 0) throw new IllegalArgumentException("Size of Bloom filter must not be negative");
+
+            _dedupDrop = drop;
+            _dedup = (capacity > 0 ? new DedupCache(capacity, ttl, bloomBits) : null);
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Return: String array by format "dedup.key=value": size, capacity, hits, probable hits, misses, evictions, not acked reads and reads forgotten by overflow
+    public String[] getDeduplicationCounts() {
+        DedupCache dedup = _dedup;
+        return (dedup != null ? dedup.getCounts() : new String[0]);
+    }
+
+    /// Check MessageId of read message
+    /// Return: true if message is duplicate to drop, not dropped duplicate gets header x-duplicate
+    private boolean dropDuplicate(APIMessage message) throws Exception {
+        DedupCache dedup = _dedup;
+        if (dedup == null || message.MessageId == null || message.MessageId.isEmpty()) return false;
+
+        int seen = (_manualAck ? dedup.checkPending(message.MessageId, message.DeliveryTag) : dedup.check(message.MessageId));
+        if (seen == DedupCache.NEW) return false;
+
+        if (seen == DedupCache.DUPLICATE && _dedupDrop) {
+            // message is handled already, application never sees it to ack; callers set their header again before next step
+            _lastError.setHeader("API::deduplicate");
+            if (_manualAck) ackMessage(message.DeliveryTag);
+            return true;
+        }
+
+        message.setHeader(DUPLICATE_HEADER, (seen == DedupCache.DUPLICATE ? "exact" : "probable"));
+        return false;
+    }
+
+    /// Parameters: int max - maximum count of messages, long timeout - milliseconds to wait when there are no messages
+    /// Return: APIMessage[] - from 0 to max messages
+    public APIMessage[] readMessages(int max, long timeout) throws Exception {
+        DeliveryBuffer consumer = _consumer;
+        if (consumer == null) return readMessagesFromQueue(_queue, max, timeout);
+
+        List<APIMessage> messages = new ArrayList<>(Math.min(Math.max(max, 0), 1024));
+        long started = System.nanoTime();
+
+        _lastError.clear();
+        try {
+            while (messages.size() < max) {
+                _lastError.setHeader("API::readMessagesFromConsumer");
+
+                // waits until the first message is read, dropped duplicates do not prolong waiting
+                long wait = (messages.isEmpty() ? timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) : 0);
+                Delivery delivery = consumer.take(Math.max(wait, 0));
+                if (delivery == null) break;
+
+                APIMessage message = newMessage();
+                message.MessageCount = consumer.size();
+
+                _lastError.setHeader("API::getProps");
+                fillMessage(message, delivery.getEnvelope(), delivery.getProperties(), delivery.getBody());
+                message.Queue = consumer.queue(delivery);
+                _stats.read(message.getBodyLength());
+
+                if (dropDuplicate(message)) {
+                    releaseMessage(message);
+                } else {
+                    messages.add(message);
+                }
+            }
+        } catch (Exception ex) {
+            _stats.readError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        _stats.readLatency(System.nanoTime() - started);
+        if (messages.isEmpty()) _stats.emptyPoll();
+
+        // messages taken before error are returned too, they are already acked in auto ack mode
+        return messages.toArray(new APIMessage[0]);
+    }
+
+    /// Parameters: String queue, int max - maximum count of messages, long timeout - milliseconds to wait when queue is empty
+    /// Return: APIMessage[] - from 0 to max messages
+    public APIMessage[] readMessagesFromQueue(String queue, int max, long timeout) throws Exception {
+        boolean autoAck = !_manualAck;
+        List<APIMessage> messages = new ArrayList<>(Math.min(Math.max(max, 0), 1024));
+        long deadline = System.currentTimeMillis() + timeout;
+        long started = System.nanoTime();
+
+        _lastError.clear();
+        ChannelPool pool = _channelPool;
+        Channel channel = null;
+        try {
+            _lastError.setHeader("API::createChannel");
+            channel = checkoutChannel(pool, !autoAck);
+
+            while (messages.size() < max) {
+                _lastError.setHeader("API::getMessageFromQueue");
+                GetResponse response = channel.basicGet(queue, autoAck);
+
+                if (response == null) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (!messages.isEmpty() || wait <= 0) break;
+
+                    Thread.sleep(Math.min(wait, POLL_INTERVAL));
+                    continue;
+                }
+
+                if (!autoAck) getAckBatcher().delivered(response.getEnvelope().getDeliveryTag());
+
+                APIMessage message = newMessage();
+                message.MessageCount = response.getMessageCount();
+
+                _lastError.setHeader("API::getProps");
+                fillMessage(message, response.getEnvelope(), response.getProps(), response.getBody());
+                message.Queue = queue;
+                _stats.read(message.getBodyLength());
+
+                if (dropDuplicate(message)) {
+                    releaseMessage(message);
+                } else {
+                    messages.add(message);
+                }
+
+                // queue is empty, don't spend round-trip for empty response
+                if (response.getMessageCount() == 0) break;
+            }
+        } catch ( Exception ex) {
+            _stats.readError();
+            _lastError.setMessage(ex.getMessage());
+        } finally {
+            if (channel != null) checkinChannel(pool, channel);
+        }
+
+        _stats.readLatency(System.nanoTime() - started);
+        if (messages.isEmpty()) _stats.emptyPoll();
+
+        return messages.toArray(new APIMessage[0]);
+    }
+
+    /// directory - for temporary files of messages read by chunks ("" - default temporary directory)
+    /// idleTimeout - milliseconds, not complete message without new chunks for this time is dropped (0 - never)
+    public boolean setChunkDirectory(String directory, long idleTimeout) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::setChunkDirectory");
+            File dir = (directory == null || directory.isEmpty() ? null : new File(directory));
+            if (dir != null && !dir.isDirectory()) throw new IOException("Directory " + directory + " does not exist");
+
+            synchronized (this) {
+                _chunkDirectory = dir;
+                _chunkIdleTimeout = Math.max(idleTimeout, 0);
+
+                // not complete messages are dropped, their chunks are already read
+                if (_chunkAssembler != null) _chunkAssembler.clear();
+                _chunkAssembler = null;
+            }
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    /// Parameters: String queue, String path - file sent by chunks, int chunkSize - maximum length of body of chunk
+    /// APIMessage message - properties and headers of every chunk, its body is not sent
+    /// Return: String id of transfer (MessageId of message or new UUID), null if file was not sent (see LastError)
+    public String sendChunkedFile(String queue, String path, int chunkSize, APIMessage message) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::openFile");
+            try (InputStream in = Files.newInputStream(Paths.get(path))) {
+                return sendChunked(queue, in, chunkSize, message);
+            }
+        } catch (Exception ex) {
+            _stats.publishError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return null;
+    }
+
+    /// Parameters: String queue, InputStream in - read to the end, it is not closed, int chunkSize, APIMessage message - see sendChunkedFile
+    /// Return: String id of transfer, null if stream was not sent (see LastError)
+    public String sendChunkedStream(String queue, InputStream in, int chunkSize, APIMessage message) throws Exception {
+        _lastError.clear();
+        try {
+            return sendChunked(queue, in, chunkSize, message);
+        } catch (Exception ex) {
+            _stats.publishError();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return null;
+    }
+
+    /// Send content of stream by chunks with headers x-chunk-id, x-chunk-seq and x-chunk-size,
+    /// last chunk has x-chunk-count, x-chunk-length and x-chunk-crc too. Memory holds two chunks at most.
+    private String sendChunked(String queue, InputStream in, int chunkSize, APIMessage message) throws Exception {
+        _lastError.setHeader("API::sendChunked");
+        if (chunkSize <= 0) throw new IllegalArgumentException("Size of chunk must be greater than 0");
+        if (message == null) throw new IllegalArgumentException("Message is not defined");
+
+        String id = (message.MessageId != null && !message.MessageId.isEmpty() ? message.MessageId : UUID.randomUUID().toString());
+
+        APIMessage chunk = new APIMessage();
+        chunk.setProperties(message.createProperties());
+        chunk.setHeader(ChunkAssembler.ID, id);
+        chunk.setHeaderLong(ChunkAssembler.SIZE, chunkSize);
+
+        CRC32 crc = new CRC32();
+        long length = 0;
+
+        _lastError.setHeader("API::readChunk");
+        byte[] body = new byte[chunkSize];
+        int filled = readChunk(in, body);
+
+        for (long seq = 0; ; seq++) {
+            // next chunk is read ahead, so the last chunk is known when it is sent
+            byte[] next = null;
+            int nextFilled = 0;
+            if (filled == chunkSize) {
+                next = new byte[chunkSize];
+                nextFilled = readChunk(in, next);
+            }
+
+            crc.update(body, 0, filled);
+            length += filled;
+
+            chunk.MessageId = id + ":" + seq;
+            chunk.setHeaderLong(ChunkAssembler.SEQ, seq);
+            chunk.setBodyStream(body, 0, filled);
+
+            boolean last = (nextFilled == 0);
+            if (last) {
+                chunk.setHeaderLong(ChunkAssembler.COUNT, seq + 1);
+                chunk.setHeaderLong(ChunkAssembler.LENGTH, length);
+                chunk.setHeaderLong(ChunkAssembler.CRC, crc.getValue());
+            }
+
+            long started = System.nanoTime();
+            RateLimiter limiter = _rateLimiter;
+            if (limiter != null) {
+                _lastError.setHeader("API::rateLimit");
+                limiter.acquire();
+            }
+
+            // body of published chunk may be kept by spool or outbox, so every chunk has own array
+            publishMessage(queue, chunk);
+            _stats.published(filled, System.nanoTime() - started);
+
+            if (last) return id;
+
+            _lastError.setHeader("API::readChunk");
+            body = next;
+            filled = nextFilled;
+        }
+    }
+
+    /// Return: count of bytes read into buffer, less than its length only at the end of stream
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if (read < 0) break;
+            filled += read;
+        }
+
+        return filled;
+    }
+
+    /// Parameters: String path - file for content of message read by chunks, it is replaced
+    /// long timeout - milliseconds to wait for chunks
+    /// Return: APIMessage - properties and headers of message with empty body, header x-chunk-length is length of content;
+    /// message that is not chunk is returned as is; message is empty if no message is complete before timeout,
+    /// LastError lists missing chunks then. In manual ack mode every chunk is acked when it is written to temporary file,
+    /// so prefetch does not limit length of message.
+    /// Chunks that come after their transfer failed or was dropped by idle timeout are dropped (rejected in manual ack mode).
+    public APIMessage readChunkedToFile(String path, long timeout) throws Exception {
+        APIMessage message = new APIMessage();
+        ChunkAssembler.Transfer transfer = readTransfer(message, timeout);
+        if (transfer == null) return message;
+
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::moveChunkedFile");
+            Files.move(transfer.file.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+
+            completeTransfer(transfer, message);
+        } catch (Exception ex) {
+            transfer.delete();
+            message.clear();
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return message;
+    }
+
+    /// Parameters: OutputStream out - content of message read by chunks is written to it, it is not closed
+    /// long timeout - milliseconds to wait for chunks
+    /// Return: APIMessage - see readChunkedToFile
+    public APIMessage readChunkedToStream(OutputStream out, long timeout) throws Exception {
+        APIMessage message = new APIMessage();
+        ChunkAssembler.Transfer transfer = readTransfer(message, timeout);
+        if (transfer == null) return message;
+
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::copyChunkedFile");
+            Files.copy(transfer.file.toPath(), out);
+
+            completeTransfer(transfer, message);
+        } catch (Exception ex) {
+            message.clear();
+            _lastError.setMessage(ex.getMessage());
+        } finally {
+            transfer.delete();
+        }
+
+        return message;
+    }
+
+    /// Return: String array by format "id=received/count" of messages being read by chunks, count is ? until last chunk is read
+    public String[] getChunkTransfers() {
+        ChunkAssembler assembler = _chunkAssembler;
+        return (assembler != null ? assembler.getTransfers() : new String[0]);
+    }
+
+    /// Read chunks from consumer or queue of API until some message is complete
+    /// Return: complete Transfer, null if message is not chunk, on error or timeout
+    private ChunkAssembler.Transfer readTransfer(APIMessage message, long timeout) throws Exception {
+        ChunkAssembler assembler = getChunkAssembler();
+        long deadline = System.currentTimeMillis() + timeout;
+
+        // transfers are dropped by idle timeout even when none of their chunks come
+        assembler.expire();
+
+        while (true) {
+            long wait = deadline - System.currentTimeMillis();
+
+            DeliveryBuffer consumer = _consumer;
+            boolean read = (consumer != null ? readMessageFromConsumer(consumer, message, Math.max(wait, 0)) : readMessageFromQueueInto(_queue, message));
+            if (_lastError.isError()) return null;
+
+            if (!read) {
+                if (wait <= 0) break;
+                if (consumer == null) Thread.sleep(Math.min(wait, POLL_INTERVAL));
+                continue;
+            }
+
+            // message sent without chunks is not lost
+            if (!ChunkAssembler.isChunk(message)) return null;
+
+            try {
+                _lastError.setHeader("API::addChunk");
+                if (assembler.isFailed(message)) {
+                    // the rest of broken transfer is dropped as its first broken chunk
+                    if (_manualAck) getAckBatcher().nack(message.DeliveryTag, false);
+                } else {
+                    ChunkAssembler.Transfer transfer;
+                    try {
+                        transfer = assembler.add(message);
+                    } catch (Exception ex) {
+                        // chunk of broken transfer is dropped, the rest of it will be dropped too
+                        if (_manualAck) getAckBatcher().nack(message.DeliveryTag, false);
+                        throw ex;
+                    }
+
+                    if (_manualAck) {
+                        _lastError.setHeader("API::ack");
+                        ackMessage(message.DeliveryTag);
+                    }
+
+                    if (transfer != null) return transfer;
+                }
+            } catch (Exception ex) {
+                message.clear();
+                _lastError.setMessage(ex.getMessage());
+                return null;
+            }
+
+            // chunks may keep coming, but reading stops at timeout
+            if (wait <= 0) break;
+        }
+
+        message.clear();
+
+        String missing = assembler.missing();
+        if (missing != null) _lastError.setMessage(missing, "API::readChunked");
+
+        return null;
+    }
+
+    /// Fill message by properties of complete transfer
+    private void completeTransfer(ChunkAssembler.Transfer transfer, APIMessage message) throws Exception {
+        message.clear();
+        message.setProperties(transfer.props);
+        message.MessageId = transfer.id;
+        message.Queue = transfer.queue;
+        message.Redelivered = transfer.isRedelivered();
+
+        Map<String, Object> headers = new HashMap<>(transfer.props.getHeaders());
+        headers.remove(ChunkAssembler.SEQ);
+        headers.put(ChunkAssembler.COUNT, (long) transfer.getCount());
+        headers.put(ChunkAssembler.LENGTH, transfer.getLength());
+        message.setHeaders(headers);
+    }
+
+    private synchronized ChunkAssembler getChunkAssembler() {
+        if (_chunkAssembler == null) _chunkAssembler = new ChunkAssembler(_chunkDirectory, _chunkIdleTimeout);
+
+        return _chunkAssembler;
+    }
+
+    /// Parameters: int max - maximum count of messages, long timeout - milliseconds to wait when there are no messages
+    /// Return: APIMessageBatch - messages as parallel arrays of bodies, properties and headers
+    public APIMessageBatch readMessageBatch(int max, long timeout) throws Exception {
+        return new APIMessageBatch(readMessages(max, timeout));
+    }
+
+    /// Fill fields of message from Envelope, BasicProperties and body
+    private void fillMessage(APIMessage message, Envelope envelope, AMQP.BasicProperties props, byte[] body) throws Exception {
+        message.DeliveryTag = envelope.getDeliveryTag();
+        message.Redelivered = envelope.isRedeliver();
+
+        // BasicProperties and headers
+        _lastError.setHeader("API::getMessageFromQueue.setHeaders");
+        message.setProperties(props);
+
+        // Body
+        if (_decompression && BodyCompressor.isSupported(message.ContentEncoding)) {
+            _lastError.setHeader("API::decompress");
+            body = BodyCompressor.decompress(message.ContentEncoding, body, _maxDecompressedSize);
+            message.ContentEncoding = null;
+        }
+
+        message.setBodyStream(body);
+    }
+
+    /// Return: String array by format "key=value": counts, bytes, empty poll ratio, flow control and latency percentiles (microseconds)
+    public String[] getStats() {
+        return _stats.getStats();
+    }
+
+    /// Return: String rows by format "key=value"
+    public String statsToString() {
+        return _stats.statsToString();
+    }
+
+    /// Return: APIStats for direct access from Java
+    public APIStats getStatsObject() {
+        return _stats;
+    }
+
+    public void resetStats() {
+        _stats.reset();
+    }
+
+    /// Parameters: String name - register statistics as MBean "isc.rabbitmq:type=API,name=<name>"
+    public boolean registerMBean(String name) throws Exception {
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::registerMBean");
+            unregisterMBean();
+
+            ObjectName mbeanName = new ObjectName("isc.rabbitmq:type=API,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(_stats, mbeanName);
+            _mbeanName = mbeanName;
+        } catch (Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return _lastError.isError();
+    }
+
+    private void unregisterMBean() throws Exception {
+        ObjectName mbeanName = _mbeanName;
+        _mbeanName = null;
+
+        if (mbeanName != null) ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+    }
+
+    public Boolean isOpen()
+    {
+        boolean result = false;
+
+        _lastError.clear();
+        try {
+            _lastError.setHeader("API::isOpen");
+            result = _connection != null && _connection.isOpen();
+        } catch ( Exception ex) {
+            _lastError.setMessage(ex.getMessage());
+        }
+
+        return result;
+    }
+
+    public void close()throws Exception {
+        try {
+            unregisterMBean();
+        } catch ( Exception ex) {}
+
+        synchronized (this) {
+            if (_ackTimer != null) _ackTimer.shutdown();
+            _ackTimer = null;
+        }
+
+        synchronized (_confirmLock) {
+            closeConfirmChannel();
+        }
+
+        synchronized (this) {
+            if (_chunkAssembler != null) _chunkAssembler.clear();
+            _chunkAssembler = null;
+        }
+
+        synchronized (_flowLock) {
+            closeFlowChannel();
+        }
+
+        try {
+            if (_consumer != null) _consumer.stop();
+            _consumer = null;
+        } catch ( Exception ex) {}
+
+        try {
+            if (_ackBatcher != null) _ackBatcher.flush();
+        } catch ( Exception ex) {}
+
+        try {
+            if (_asyncSender != null) _asyncSender.stop();
+            _asyncSender = null;
+        } catch ( Exception ex) {}
+
+        try {
+            if (_dispatcher != null) _dispatcher.stop(0);
+            _dispatcher = null;
+        } catch ( Exception ex) {}
+
+        synchronized (this) {
+            if (_rpcClient != null) _rpcClient.close();
+            _rpcClient = null;
+        }
+
+        try {
+            if (_spool != null) _spool.close();
+            _spool = null;
+        } catch ( Exception ex) {}
+
+        try {
+            if (_outbox != null) _outbox.close();
+        } catch ( Exception ex) {}
+
+        try {
+            if (_channelPool != null) _channelPool.close();
+            _channelPool = null;
+        } catch ( Exception ex) {}
+
         try {
             _channel.close();
         } catch ( Exception ex) {}
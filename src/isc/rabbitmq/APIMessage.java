@@ -3,21 +3,48 @@ package isc.rabbitmq;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.impl.LongStringHelper;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 /// class APIMessage
 public class APIMessage {
-    private final String _newLine;
-    private final SimpleDateFormat _dateFormat;
+    // shared body of empty message
+    public static final byte[] EMPTY_BODY = new byte[0];
+
+    // versions of binary format of toBytes, first byte of encoded message or array of messages
+    // version 2 of message adds Queue, version 1 is still read
+    private static final byte BYTES_VERSION = 2;
+    private static final byte BYTES_ARRAY_VERSION = 1;
+
+    // shared by all messages, DateTimeFormatter is immutable and thread-safe
+    private static final String NEW_LINE = System.lineSeparator();
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZONE);
 
     public int MessageCount = 0;
 
+    // Envelope, DeliveryTag is used by API.ack/nack in manual ack mode
+    public long DeliveryTag = 0;
+    public boolean Redelivered = false;
+
+    // name of queue message was read from (null - sent message)
+    public String Queue = null;
+
     // BasicProperties
     public String ContentType = null;
     public String ContentEncoding = null;
@@ -34,23 +61,46 @@ public class APIMessage {
 
 
     private Date Timestamp = null;
-    public String getTimestamp() { return (Timestamp != null ? _dateFormat.format(Timestamp) : null); }
+    public String getTimestamp() { return (Timestamp != null ? DATE_FORMAT.format(Timestamp.toInstant()) : null); }
     public long getTimestampMilliSeconds() { return (Timestamp != null ? Timestamp.getTime() : 0); }
-    public void setTimestamp(String timestamp) throws java.text.ParseException { Timestamp = (timestamp != null ? _dateFormat.parse(timestamp) : null); }
+    public void setTimestamp(String timestamp) throws java.text.ParseException {
+        try {
+            Timestamp = (timestamp != null ? Date.from(LocalDateTime.parse(timestamp, DATE_FORMAT).atZone(ZONE).toInstant()) : null);
+        } catch (DateTimeParseException ex) {
+            throw new java.text.ParseException(ex.getMessage(), ex.getErrorIndex());
+        }
+    }
     public void setTimestampMilliSeconds(long MilliSeconds) {
         Timestamp = new Date(MilliSeconds);
     }
 
+    // Date of received message is used without copy
+    void setTimestampDate(Date timestamp) {
+        Timestamp = timestamp;
+    }
+
+    // body is part of _body array from _bodyOffset, array is not copied when it is set or read
     private byte[] _body;
-    private final Map<String, Object> _headers;
+    private int _bodyOffset;
+    private int _bodyLength;
+
+    // true if _body was allocated by appendBodyChunk and may be filled beyond _bodyLength
+    private boolean _bodyOwned;
+
+    // decoded body, kept until body is changed
+    private String _bodyString;
+    // _headers is _ownHeaders or headers of received message, which are copied to _ownHeaders before change
+    private final Map<String, Object> _ownHeaders;
+    private Map<String, Object> _headers;
+
+    // decoded values of headers, header is decoded on first access and kept until headers are changed
+    private Map<String, String> _headerStrings = null;
 
     /// Constructor by default
     public APIMessage() throws Exception {
-         _body = new byte[0];
-        _headers = new HashMap<>();
-
-        _newLine = System.lineSeparator();
-        _dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        setBodyArray(EMPTY_BODY, 0, 0, false);
+        _ownHeaders = new HashMap<>();
+        _headers = _ownHeaders;
     }
 
     /// Constructor with parameters: String contentType, int deliveryMode
@@ -69,6 +119,9 @@ public class APIMessage {
 
     public void clear() {
         MessageCount = 0;
+        DeliveryTag = 0;
+        Redelivered = false;
+        Queue = null;
 
         // BasicProperties
         ContentType = null;
@@ -85,56 +138,259 @@ public class APIMessage {
         Priority = null;
         Timestamp = null;
 
-        _body = new byte[0];
-        _headers.clear();
+        setBodyArray(EMPTY_BODY, 0, 0, false);
+        _ownHeaders.clear();
+        _headers = _ownHeaders;
+        _headerStrings = null;
     }
 
     /// Return: int BodyLength
     public int getBodyLength() {
-        return _body.length;
+        return _bodyLength;
     }
 
     /// Return: String Body
     public String getBodyString() throws Exception {
-        return new String(_body, StandardCharsets.UTF_8);
+        if (_bodyString == null) _bodyString = new String(_body, _bodyOffset, _bodyLength, StandardCharsets.UTF_8);
+
+        return _bodyString;
     }
 
     /// Parameters: String Body
     public void setBodyString(String bodyString) throws Exception {
-        _body = (bodyString == null ? new byte[0] : bodyString.getBytes(StandardCharsets.UTF_8));
+        byte[] body = (bodyString == null || bodyString.isEmpty() ? EMPTY_BODY : bodyString.getBytes(StandardCharsets.UTF_8));
+        setBodyArray(body, 0, body.length, false);
+
+        _bodyString = (bodyString == null ? "" : bodyString);
     }
 
     /// Return: byte[] Body
     public byte[] getBodyStream() throws Exception {
+        // array is trimmed once, next calls return the same array
+        if (_bodyOffset != 0 || _bodyLength != _body.length) setBodyArray(Arrays.copyOfRange(_body, _bodyOffset, _bodyOffset + _bodyLength), 0, _bodyLength, true);
+
         return _body;
     }
 
     /// Parameters: byte[] Body
     public void setBodyStream(byte[] bodyStream) throws Exception {
-        _body = (bodyStream == null ? new byte[0] : bodyStream);
+        if (bodyStream == null) bodyStream = EMPTY_BODY;
+        setBodyArray(bodyStream, 0, bodyStream.length, false);
+    }
+
+    /// Parameters: byte[] Body, int offset, int length - body is part of array, array is not copied
+    public void setBodyStream(byte[] bodyStream, int offset, int length) throws Exception {
+        if (bodyStream == null) bodyStream = EMPTY_BODY;
+        if (offset < 0 || length < 0 || offset + length > bodyStream.length) throw new IndexOutOfBoundsException("Part [" + offset + ", " + (offset + length) + ") is out of array of " + bodyStream.length + " bytes");
+
+        setBodyArray(bodyStream, offset, length, false);
+    }
+
+    /// Return: ByteBuffer - read-only view of body without copy
+    public ByteBuffer getBodyBuffer() {
+        return ByteBuffer.wrap(_body, _bodyOffset, _bodyLength).slice().asReadOnlyBuffer();
+    }
+
+    /// Parameters: ByteBuffer - remaining bytes of buffer, array of heap buffer is used without copy
+    public void setBodyBuffer(ByteBuffer bodyBuffer) throws Exception {
+        if (bodyBuffer == null) {
+            setBodyArray(EMPTY_BODY, 0, 0, false);
+        } else if (bodyBuffer.hasArray()) {
+            setBodyArray(bodyBuffer.array(), bodyBuffer.arrayOffset() + bodyBuffer.position(), bodyBuffer.remaining(), false);
+        } else {
+            byte[] body = new byte[bodyBuffer.remaining()];
+            bodyBuffer.duplicate().get(body);
+            setBodyArray(body, 0, body.length, true);
+        }
+    }
+
+    /// Parameters: int offset, int length
+    /// Return: byte[] part of body from offset, shorter than length at the end of body, empty after the end
+    public byte[] readBodyChunk(int offset, int length) throws Exception {
+        if (offset < 0 || length < 0) throw new IndexOutOfBoundsException("Offset and length must not be negative");
+        if (offset >= _bodyLength || length == 0) return EMPTY_BODY;
+
+        int end = _bodyOffset + offset + Math.min(length, _bodyLength - offset);
+        return Arrays.copyOfRange(_body, _bodyOffset + offset, end);
+    }
+
+    /// Parameters: int capacity - expected length of body
+    /// Clear body before it is written by appendBodyChunk, body with exact capacity is sent without copy
+    public void beginBody(int capacity) throws Exception {
+        setBodyArray(capacity > 0 ? new byte[capacity] : EMPTY_BODY, 0, 0, capacity > 0);
+    }
+
+    /// Parameters: byte[] chunk - appended to the end of body
+    public void appendBodyChunk(byte[] chunk) throws Exception {
+        if (chunk == null || chunk.length == 0) return;
+
+        int length = _bodyLength + chunk.length;
+        if (!_bodyOwned || _bodyOffset + length > _body.length) {
+            // grow by half to keep count of copies small for body written by many chunks
+            int capacity = Math.max(length, _bodyLength + (_bodyLength >> 1));
+            byte[] body = new byte[capacity];
+            System.arraycopy(_body, _bodyOffset, body, 0, _bodyLength);
+            setBodyArray(body, 0, _bodyLength, true);
+        }
+
+        System.arraycopy(chunk, 0, _body, _bodyOffset + _bodyLength, chunk.length);
+        _bodyLength = length;
+        _bodyString = null;
+    }
+
+    private void setBodyArray(byte[] body, int offset, int length, boolean owned) {
+        _body = body;
+        _bodyOffset = offset;
+        _bodyLength = length;
+        _bodyOwned = owned;
+        _bodyString = null;
     }
 
     public void clearHeaders() throws Exception {
-        _headers.clear();
+        _ownHeaders.clear();
+        _headers = _ownHeaders;
+        _headerStrings = null;
     }
 
     /// Parameters: String key, String value
     public void setHeader(String key, String value) throws Exception {
-        _headers.put(key, LongStringHelper.asLongString(value));
+        putHeader(key, LongStringHelper.asLongString(value));
+    }
+
+    /// Parameters: String key, long value
+    public void setHeaderLong(String key, long value) throws Exception {
+        putHeader(key, value);
+    }
+
+    /// Parameters: String key, boolean value
+    public void setHeaderBoolean(String key, boolean value) throws Exception {
+        putHeader(key, value);
+    }
+
+    /// Parameters: String key, long value - milliseconds, header is AMQP timestamp (seconds)
+    public void setHeaderTimestamp(String key, long value) throws Exception {
+        putHeader(key, new Date(value));
+    }
+
+    /// Parameters: String key, Map<String,String> value - header is nested table of strings
+    public void setHeaderTable(String key, Map<String,String> value) throws Exception {
+        Map<String, Object> table = new HashMap<>(value.size() * 2);
+        for (Map.Entry<String, String> item : value.entrySet()) table.put(item.getKey(), LongStringHelper.asLongString(item.getValue()));
+
+        putHeader(key, table);
     }
 
     /// Parameters: Map<String,Object>
     public void setHeaders(Map<String,Object> headers) throws Exception {
-        _headers.clear();
+        clearHeaders();
         if (headers == null || headers.size() == 0) return;
 
-        _headers.putAll(headers);
+        _ownHeaders.putAll(headers);
+    }
+
+    // Headers of received message are not changed by client, so they are used without copy
+    void setReceivedHeaders(Map<String,Object> headers) {
+        _ownHeaders.clear();
+        _headers = (headers == null || headers.isEmpty() ? _ownHeaders : headers);
+        _headerStrings = null;
+    }
+
+    private void putHeader(String key, Object value) {
+        ownHeaders().put(key, value);
+        if (_headerStrings != null) _headerStrings.remove(key);
+    }
+
+    // Headers as they are sent, for templates
+    Map<String, Object> getHeadersMap() {
+        return _headers;
+    }
+
+    // Timestamp as it is sent, for templates
+    Date getTimestampDate() {
+        return Timestamp;
+    }
+
+    private Map<String, Object> ownHeaders() {
+        if (_headers != _ownHeaders) {
+            _ownHeaders.putAll(_headers);
+            _headers = _ownHeaders;
+        }
+
+        return _ownHeaders;
     }
 
     /// Parameters: String key
-    /// Return: String value
+    /// Return: String value, null if there is no header
     public String getHeader(String key) throws Exception {
-        return _headers.get(key).toString();
+        if (_headerStrings != null) {
+            String value = _headerStrings.get(key);
+            if (value != null) return value;
+        }
+
+        Object value = _headers.get(key);
+        if (value == null) return null;
+
+        if (_headerStrings == null) _headerStrings = new HashMap<>();
+        String decoded = headerToString(value);
+        _headerStrings.put(key, decoded);
+
+        return decoded;
+    }
+
+    /// Parameters: String[] keys
+    /// Return: String array of values in order of keys, null for missing headers
+    public String[] getHeaderValues(String[] keys) throws Exception {
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = getHeader(keys[i]);
+
+        return values;
+    }
+
+    /// Return: true if message has header
+    public boolean hasHeader(String key) {
+        return _headers.containsKey(key);
+    }
+
+    /// Parameters: String key
+    /// Return: long value of numeric header or header with decimal string, 0 if there is no header
+    public long getHeaderLong(String key) throws Exception {
+        Object value = _headers.get(key);
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof Date) return ((Date) value).getTime();
+
+        return Long.parseLong(getHeader(key).trim());
+    }
+
+    /// Parameters: String key
+    /// Return: boolean value of header (boolean, number not equal to 0 or string "true"/"1"), false if there is no header
+    public boolean getHeaderBoolean(String key) throws Exception {
+        Object value = _headers.get(key);
+        if (value == null) return false;
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof Number) return ((Number) value).longValue() != 0;
+
+        String decoded = getHeader(key).trim();
+        return "true".equalsIgnoreCase(decoded) || "1".equals(decoded);
+    }
+
+    /// Parameters: String key
+    /// Return: long value of timestamp header in milliseconds, 0 if there is no header
+    public long getHeaderTimestamp(String key) throws Exception {
+        return getHeaderLong(key);
+    }
+
+    /// Parameters: String key
+    /// Return: Map<String,String> of nested table header, null if there is no header or it is not table
+    public Map<String,String> getHeaderTable(String key) throws Exception {
+        Object value = _headers.get(key);
+        if (!(value instanceof Map)) return null;
+
+        Map<?, ?> table = (Map<?, ?>) value;
+        Map<String,String> strings = new HashMap<>(table.size() * 2);
+        for (Map.Entry<?, ?> item : table.entrySet()) strings.put(item.getKey().toString(), headerToString(item.getValue()));
+
+        return strings;
     }
 
     /// Return: String array by format "key=value"
@@ -144,25 +400,34 @@ public class APIMessage {
         String[] headers = new String[_headers.size()];
 
         int i = 0;
-        for (HashMap.Entry<String, Object> item : _headers.entrySet()) headers[i++] = item.getKey() + "=" + item.getValue();
+        for (String key : _headers.keySet()) headers[i++] = key + "=" + getHeader(key);
 
         return headers;
     }
 
     /// Return: Map<String,String>
     public Map<String,String> getHeadersAsMap() throws Exception {
-        Map<String,String> mapStrHeaders = new HashMap<>(_headers.size());
-        for (Map.Entry<String, Object> item : _headers.entrySet()) mapStrHeaders.put(item.getKey(), item.getValue().toString());
+        Map<String,String> mapStrHeaders = new HashMap<>(_headers.size() * 2);
+        for (String key : _headers.keySet()) mapStrHeaders.put(key, getHeader(key));
 
         return mapStrHeaders;
     }
 
+    // LongString and byte[] are decoded as UTF-8, timestamp has format of getTimestamp, other values by toString
+    private static String headerToString(Object value) {
+        if (value == null) return null;
+        if (value instanceof byte[]) return new String((byte[]) value, StandardCharsets.UTF_8);
+        if (value instanceof Date) return DATE_FORMAT.format(((Date) value).toInstant());
+
+        return value.toString();
+    }
+
     /// Return: String rows by format "key=value"
     public String headersToString() throws Exception {
         if (_headers.size() == 0) return "";
 
         StringBuilder sbHeaders = new StringBuilder();
-        for (String header : getHeaders()) sbHeaders.append(header).append(_newLine);
+        for (String header : getHeaders()) sbHeaders.append(header).append(NEW_LINE);
 
         return sbHeaders.toString();
     }
@@ -170,7 +435,108 @@ public class APIMessage {
     // Return: AMQP.BasicProperties from fields of Message
     public AMQP.BasicProperties createProperties() throws Exception
     {
-        return new AMQP.BasicProperties(ContentType, ContentEncoding, _headers, DeliveryMode, Priority, CorrelationId, ReplyTo, Expiration, MessageId, Timestamp, Type, UserId, AppId, ClusterId);
+        return createProperties(ContentEncoding);
+    }
+
+    // Compressed copy of body, body itself is not changed
+    byte[] compressBody(String encoding, int level) {
+        return BodyCompressor.compress(encoding, _body, _bodyOffset, _bodyLength, level);
+    }
+
+    // BasicProperties with ContentEncoding of compressed body
+    AMQP.BasicProperties createProperties(String contentEncoding) {
+        return new AMQP.BasicProperties(ContentType, contentEncoding, _headers, DeliveryMode, Priority, CorrelationId, ReplyTo, Expiration, MessageId, Timestamp, Type, UserId, AppId, ClusterId);
+    }
+
+    // Fill properties from received BasicProperties, headers are not copied
+    void setProperties(AMQP.BasicProperties props) {
+        ContentType = props.getContentType();
+        ContentEncoding = props.getContentEncoding();
+        CorrelationId = props.getCorrelationId();
+        ReplyTo = props.getReplyTo();
+        Expiration = props.getExpiration();
+        MessageId = props.getMessageId();
+        Type = props.getType();
+        UserId = props.getUserId();
+        AppId = props.getAppId();
+        ClusterId = props.getClusterId();
+        DeliveryMode = props.getDeliveryMode();
+        Priority = props.getPriority();
+        Timestamp = props.getTimestamp();
+
+        setReceivedHeaders(props.getHeaders());
+    }
+
+    /// Return: byte[] - message in compact binary format: envelope, properties, typed headers and body
+    public byte[] toBytes() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(_bodyLength + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /// Parameters: byte[] bytes - result of toBytes
+    /// Return: APIMessage
+    public static APIMessage fromBytes(byte[] bytes) throws Exception {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /// Parameters: APIMessage[] messages
+    /// Return: byte[] - array of messages in binary format of toBytes
+    public static byte[] toBytes(APIMessage[] messages) throws Exception {
+        int size = 0;
+        for (APIMessage message : messages) size += message._bodyLength + 256;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(BYTES_ARRAY_VERSION);
+        out.writeInt(messages.length);
+        for (APIMessage message : messages) message.write(out);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /// Parameters: byte[] bytes - result of toBytes(APIMessage[])
+    /// Return: APIMessage[]
+    public static APIMessage[] fromBytesArray(byte[] bytes) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readByte() != BYTES_ARRAY_VERSION) throw new IOException("Unknown version of binary array of messages");
+
+        APIMessage[] messages = new APIMessage[in.readInt()];
+        for (int i = 0; i < messages.length; i++) messages[i] = read(in);
+
+        return messages;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeByte(BYTES_VERSION);
+        out.writeLong(DeliveryTag);
+        out.writeBoolean(Redelivered);
+        out.writeInt(MessageCount);
+        out.writeBoolean(Queue != null);
+        if (Queue != null) out.writeUTF(Queue);
+        APIMessageCodec.writeProperties(out, new AMQP.BasicProperties(ContentType, ContentEncoding, _headers, DeliveryMode, Priority, CorrelationId, ReplyTo, Expiration, MessageId, Timestamp, Type, UserId, AppId, ClusterId));
+        APIMessageCodec.writeBody(out, _body, _bodyOffset, _bodyLength);
+    }
+
+    private static APIMessage read(DataInputStream in) throws Exception {
+        byte version = in.readByte();
+        if (version != BYTES_VERSION && version != 1) throw new IOException("Unknown version of binary message");
+
+        APIMessage message = new APIMessage();
+        message.DeliveryTag = in.readLong();
+        message.Redelivered = in.readBoolean();
+        message.MessageCount = in.readInt();
+        if (version >= 2 && in.readBoolean()) message.Queue = in.readUTF();
+        message.setProperties(APIMessageCodec.readProperties(in));
+
+        byte[] body = APIMessageCodec.readBody(in);
+        message.setBodyArray(body, 0, body.length, true);
+
+        return message;
     }
 
     /// Return: String array by format "key=value"
@@ -179,6 +545,9 @@ public class APIMessage {
 
         lstProps.add("MessageCount=" + MessageCount);
         lstProps.add("BodyLength=" + getBodyLength());
+        if (DeliveryTag != 0) lstProps.add("DeliveryTag=" + DeliveryTag);
+        if (Redelivered) lstProps.add("Redelivered=" + Redelivered);
+        if (Queue != null) lstProps.add("Queue=" + Queue);
 
         if (ContentType != null) lstProps.add("ContentType=" + ContentType);
         if (ContentEncoding != null) lstProps.add("ContentEncoding=" + ContentEncoding);
@@ -203,7 +572,7 @@ public class APIMessage {
         if ((props == null) || (props.length == 0)) return "";
 
         StringBuilder sbProps = new StringBuilder();
-        for (String prop : props) sbProps.append(prop).append(_newLine);
+        for (String prop : props) sbProps.append(prop).append(NEW_LINE);
 
         return sbProps.toString();
     }
@@ -214,15 +583,15 @@ public class APIMessage {
         StringBuilder sbMessage = new StringBuilder();
 
         try {
-            sbMessage.append("BasicProperties:").append(_newLine);
-            sbMessage.append(propertiesToString()).append(_newLine);
+            sbMessage.append("BasicProperties:").append(NEW_LINE);
+            sbMessage.append(propertiesToString()).append(NEW_LINE);
 
-            sbMessage.append("Headers:").append(_newLine);
-            sbMessage.append(headersToString()).append(_newLine);
+            sbMessage.append("Headers:").append(NEW_LINE);
+            sbMessage.append(headersToString()).append(NEW_LINE);
 
             sbMessage.append(getBodyString());
         } catch (Exception e) {
-            sbMessage.append(e.getMessage()).append(_newLine);
+            sbMessage.append(e.getMessage()).append(NEW_LINE);
         }
 
         return sbMessage.toString();
@@ -0,0 +1,69 @@
+package isc.rabbitmq;
+
+/// class APIMessageBatch
+/// Messages of batch as parallel arrays, element i of every array belongs to message i.
+/// Gateway transfers few large arrays instead of many small objects.
+public class APIMessageBatch {
+    private final APIMessage[] _messages;
+
+    /// Parameters: APIMessage[] messages
+    public APIMessageBatch(APIMessage[] messages) {
+        _messages = (messages == null ? new APIMessage[0] : messages);
+    }
+
+    /// Return: int count of messages
+    public int getCount() {
+        return _messages.length;
+    }
+
+    /// Parameters: int index
+    /// Return: APIMessage
+    public APIMessage getMessage(int index) {
+        return _messages[index];
+    }
+
+    /// Return: APIMessage[]
+    public APIMessage[] getMessages() {
+        return _messages;
+    }
+
+    /// Return: byte[][] bodies of messages
+    public byte[][] getBodies() throws Exception {
+        byte[][] bodies = new byte[_messages.length][];
+        for (int i = 0; i < _messages.length; i++) bodies[i] = _messages[i].getBodyStream();
+
+        return bodies;
+    }
+
+    /// Return: String[] bodies of messages
+    public String[] getBodyStrings() throws Exception {
+        String[] bodies = new String[_messages.length];
+        for (int i = 0; i < _messages.length; i++) bodies[i] = _messages[i].getBodyString();
+
+        return bodies;
+    }
+
+    /// Return: String[] properties of messages, rows by format "key=value"
+    public String[] getProperties() throws Exception {
+        String[] props = new String[_messages.length];
+        for (int i = 0; i < _messages.length; i++) props[i] = _messages[i].propertiesToString();
+
+        return props;
+    }
+
+    /// Return: String[] headers of messages, rows by format "key=value"
+    public String[] getHeaders() throws Exception {
+        String[] headers = new String[_messages.length];
+        for (int i = 0; i < _messages.length; i++) headers[i] = _messages[i].headersToString();
+
+        return headers;
+    }
+
+    /// Return: long[] delivery tags of messages for API.ack/nack
+    public long[] getDeliveryTags() {
+        long[] tags = new long[_messages.length];
+        for (int i = 0; i < _messages.length; i++) tags[i] = _messages[i].DeliveryTag;
+
+        return tags;
+    }
+}
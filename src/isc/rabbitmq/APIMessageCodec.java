@@ -0,0 +1,115 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.ValueReader;
+import com.rabbitmq.client.impl.ValueWriter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+/// class APIMessageCodec
+/// Compact binary encoding of AMQP.BasicProperties and body.
+/// Only present properties are written after bit mask of presence, headers are written as AMQP table and keep their types.
+final class APIMessageCodec {
+    // bits of presence mask
+    private static final int CONTENT_TYPE = 1;
+    private static final int CONTENT_ENCODING = 1 << 1;
+    private static final int HEADERS = 1 << 2;
+    private static final int DELIVERY_MODE = 1 << 3;
+    private static final int PRIORITY = 1 << 4;
+    private static final int CORRELATION_ID = 1 << 5;
+    private static final int REPLY_TO = 1 << 6;
+    private static final int EXPIRATION = 1 << 7;
+    private static final int MESSAGE_ID = 1 << 8;
+    private static final int TIMESTAMP = 1 << 9;
+    private static final int TYPE = 1 << 10;
+    private static final int USER_ID = 1 << 11;
+    private static final int APP_ID = 1 << 12;
+    private static final int CLUSTER_ID = 1 << 13;
+
+    private APIMessageCodec() {}
+
+    /// Parameters: DataOutputStream out, AMQP.BasicProperties props
+    static void writeProperties(DataOutputStream out, AMQP.BasicProperties props) throws IOException {
+        Map<String, Object> headers = props.getHeaders();
+
+        int mask = 0;
+        if (props.getContentType() != null) mask |= CONTENT_TYPE;
+        if (props.getContentEncoding() != null) mask |= CONTENT_ENCODING;
+        if (headers != null && !headers.isEmpty()) mask |= HEADERS;
+        if (props.getDeliveryMode() != null) mask |= DELIVERY_MODE;
+        if (props.getPriority() != null) mask |= PRIORITY;
+        if (props.getCorrelationId() != null) mask |= CORRELATION_ID;
+        if (props.getReplyTo() != null) mask |= REPLY_TO;
+        if (props.getExpiration() != null) mask |= EXPIRATION;
+        if (props.getMessageId() != null) mask |= MESSAGE_ID;
+        if (props.getTimestamp() != null) mask |= TIMESTAMP;
+        if (props.getType() != null) mask |= TYPE;
+        if (props.getUserId() != null) mask |= USER_ID;
+        if (props.getAppId() != null) mask |= APP_ID;
+        if (props.getClusterId() != null) mask |= CLUSTER_ID;
+
+        out.writeShort(mask);
+
+        if ((mask & CONTENT_TYPE) != 0) out.writeUTF(props.getContentType());
+        if ((mask & CONTENT_ENCODING) != 0) out.writeUTF(props.getContentEncoding());
+        if ((mask & HEADERS) != 0) new ValueWriter(out).writeTable(headers);
+        if ((mask & DELIVERY_MODE) != 0) out.writeByte(props.getDeliveryMode());
+        if ((mask & PRIORITY) != 0) out.writeByte(props.getPriority());
+        if ((mask & CORRELATION_ID) != 0) out.writeUTF(props.getCorrelationId());
+        if ((mask & REPLY_TO) != 0) out.writeUTF(props.getReplyTo());
+        if ((mask & EXPIRATION) != 0) out.writeUTF(props.getExpiration());
+        if ((mask & MESSAGE_ID) != 0) out.writeUTF(props.getMessageId());
+        if ((mask & TIMESTAMP) != 0) out.writeLong(props.getTimestamp().getTime());
+        if ((mask & TYPE) != 0) out.writeUTF(props.getType());
+        if ((mask & USER_ID) != 0) out.writeUTF(props.getUserId());
+        if ((mask & APP_ID) != 0) out.writeUTF(props.getAppId());
+        if ((mask & CLUSTER_ID) != 0) out.writeUTF(props.getClusterId());
+    }
+
+    /// Parameters: DataInputStream in
+    /// Return: AMQP.BasicProperties
+    static AMQP.BasicProperties readProperties(DataInputStream in) throws IOException {
+        int mask = in.readUnsignedShort();
+
+        String contentType = ((mask & CONTENT_TYPE) != 0 ? in.readUTF() : null);
+        String contentEncoding = ((mask & CONTENT_ENCODING) != 0 ? in.readUTF() : null);
+        Map<String, Object> headers = ((mask & HEADERS) != 0 ? new ValueReader(in).readTable() : null);
+        Integer deliveryMode = ((mask & DELIVERY_MODE) != 0 ? (int) in.readByte() : null);
+        Integer priority = ((mask & PRIORITY) != 0 ? (int) in.readByte() : null);
+        String correlationId = ((mask & CORRELATION_ID) != 0 ? in.readUTF() : null);
+        String replyTo = ((mask & REPLY_TO) != 0 ? in.readUTF() : null);
+        String expiration = ((mask & EXPIRATION) != 0 ? in.readUTF() : null);
+        String messageId = ((mask & MESSAGE_ID) != 0 ? in.readUTF() : null);
+        Date timestamp = ((mask & TIMESTAMP) != 0 ? new Date(in.readLong()) : null);
+        String type = ((mask & TYPE) != 0 ? in.readUTF() : null);
+        String userId = ((mask & USER_ID) != 0 ? in.readUTF() : null);
+        String appId = ((mask & APP_ID) != 0 ? in.readUTF() : null);
+        String clusterId = ((mask & CLUSTER_ID) != 0 ? in.readUTF() : null);
+
+        return new AMQP.BasicProperties(contentType, contentEncoding, headers, deliveryMode, priority, correlationId, replyTo, expiration, messageId, timestamp, type, userId, appId, clusterId);
+    }
+
+    /// Parameters: DataOutputStream out, byte[] body
+    static void writeBody(DataOutputStream out, byte[] body) throws IOException {
+        writeBody(out, body, 0, body.length);
+    }
+
+    /// Parameters: DataOutputStream out, byte[] body, int offset, int length - body is part of array
+    static void writeBody(DataOutputStream out, byte[] body, int offset, int length) throws IOException {
+        out.writeInt(length);
+        out.write(body, offset, length);
+    }
+
+    /// Parameters: DataInputStream in
+    /// Return: byte[] body
+    static byte[] readBody(DataInputStream in) throws IOException {
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        return body;
+    }
+}
@@ -0,0 +1,9 @@
+package isc.rabbitmq;
+
+/// interface APIMessageHandler
+/// Processing of message delivered by dispatcher, message is acknowledged after handle returns.
+/// Exception thrown by handle rejects message.
+public interface APIMessageHandler {
+    /// Parameters: APIMessage message
+    void handle(APIMessage message) throws Exception;
+}
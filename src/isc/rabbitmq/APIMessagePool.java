@@ -0,0 +1,35 @@
+package isc.rabbitmq;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/// class APIMessagePool
+/// Bounded pool of free messages for reuse, so steady read loop does not allocate new messages.
+/// Pool is thread-safe and does not allocate on acquire and release.
+public class APIMessagePool {
+    private final BlockingQueue<APIMessage> _free;
+
+    /// Parameters: int size - maximum count of free messages
+    public APIMessagePool(int size) {
+        _free = new ArrayBlockingQueue<>(size);
+    }
+
+    /// Return: APIMessage from pool or new one if pool is empty
+    public APIMessage acquire() throws Exception {
+        APIMessage message = _free.poll();
+        return (message != null ? message : new APIMessage());
+    }
+
+    /// Parameters: APIMessage message - is cleared and kept for reuse, dropped if pool is full
+    public void release(APIMessage message) {
+        if (message == null) return;
+
+        message.clear();
+        _free.offer(message);
+    }
+
+    /// Return: count of free messages in pool
+    public int getCount() {
+        return _free.size();
+    }
+}
@@ -0,0 +1,57 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.LongStringHelper;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/// class APIMessageTemplate
+/// Static part of messages sent many times: properties and headers are taken once from prototype message.
+/// String header values are converted to LongString once, so send of message by template only copies header map
+/// (constructor of BasicProperties copies it) and sets MessageId, CorrelationId and Timestamp.
+/// Header table itself is still written to frame on every publish: ContentHeaderPropertyWriter can't take encoded bytes.
+class APIMessageTemplate {
+    private final String _contentType;
+    private final String _contentEncoding;
+    private final Map<String, Object> _headers;
+    private final Integer _deliveryMode;
+    private final Integer _priority;
+    private final String _replyTo;
+    private final String _expiration;
+    private final String _type;
+    private final String _userId;
+    private final String _appId;
+    private final String _clusterId;
+
+    /// Parameters: APIMessage prototype
+    APIMessageTemplate(APIMessage prototype) {
+        _contentType = prototype.ContentType;
+        _contentEncoding = prototype.ContentEncoding;
+        _deliveryMode = prototype.DeliveryMode;
+        _priority = prototype.Priority;
+        _replyTo = prototype.ReplyTo;
+        _expiration = prototype.Expiration;
+        _type = prototype.Type;
+        _userId = prototype.UserId;
+        _appId = prototype.AppId;
+        _clusterId = prototype.ClusterId;
+
+        Map<String, Object> headers = new HashMap<>();
+        for (Map.Entry<String, Object> item : prototype.getHeadersMap().entrySet()) {
+            Object value = item.getValue();
+            headers.put(item.getKey(), (value instanceof String ? LongStringHelper.asLongString((String) value) : value));
+        }
+        _headers = (headers.isEmpty() ? null : Collections.unmodifiableMap(headers));
+    }
+
+    /// Parameters: String messageId, String correlationId, Date timestamp
+    /// Return: AMQP.BasicProperties of template with per-message fields
+    AMQP.BasicProperties createProperties(String messageId, String correlationId, Date timestamp) {
+        return new AMQP.BasicProperties(_contentType, _contentEncoding, _headers, _deliveryMode, _priority,
+                                        correlationId, _replyTo, _expiration, messageId, timestamp,
+                                        _type, _userId, _appId, _clusterId);
+    }
+}
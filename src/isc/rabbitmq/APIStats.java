@@ -0,0 +1,189 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.BlockedListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/// class APIStats
+/// Counters and latencies of API calls. Counters are LongAdder, so recording from hot path is cheap.
+/// Listens for connection.blocked/unblocked notifications of broker (flow control).
+public class APIStats implements APIStatsMBean, BlockedListener {
+    private static final String NEW_LINE = System.lineSeparator();
+
+    private final LongAdder _published = new LongAdder();
+    private final LongAdder _publishedBytes = new LongAdder();
+    private final LongAdder _publishErrors = new LongAdder();
+
+    private final LongAdder _read = new LongAdder();
+    private final LongAdder _readBytes = new LongAdder();
+    private final LongAdder _emptyPolls = new LongAdder();
+    private final LongAdder _readErrors = new LongAdder();
+
+    private final LongAdder _confirmAcks = new LongAdder();
+    private final LongAdder _confirmNacks = new LongAdder();
+
+    private final LongAdder _blockedEvents = new LongAdder();
+    private final LongAdder _unblockedEvents = new LongAdder();
+    private volatile boolean _blocked = false;
+    private volatile String _blockedReason = "";
+
+    private final LatencyHistogram _sendLatency = new LatencyHistogram();
+    private final LatencyHistogram _readLatency = new LatencyHistogram();
+    private final LatencyHistogram _confirmLatency = new LatencyHistogram();
+
+    // recording, nanos - System.nanoTime() difference
+
+    void published(int bytes, long nanos) {
+        _published.increment();
+        _publishedBytes.add(bytes);
+        _sendLatency.record(nanos);
+    }
+
+    void publishError() {
+        _publishErrors.increment();
+    }
+
+    void read(int bytes) {
+        _read.increment();
+        _readBytes.add(bytes);
+    }
+
+    void readLatency(long nanos) {
+        _readLatency.record(nanos);
+    }
+
+    void emptyPoll() {
+        _emptyPolls.increment();
+    }
+
+    void readError() {
+        _readErrors.increment();
+    }
+
+    void confirmed(boolean ack, long nanos) {
+        if (ack) _confirmAcks.increment();
+        else _confirmNacks.increment();
+
+        _confirmLatency.record(nanos);
+    }
+
+    @Override
+    public void handleBlocked(String reason) {
+        _blockedReason = (reason == null ? "" : reason);
+        _blocked = true;
+        _blockedEvents.increment();
+    }
+
+    @Override
+    public void handleUnblocked() {
+        _blocked = false;
+        _unblockedEvents.increment();
+    }
+
+    /// Return: String reason of last connection.blocked notification
+    public String getBlockedReason() {
+        return _blockedReason;
+    }
+
+    // APIStatsMBean
+
+    @Override public long getPublished() { return _published.sum(); }
+    @Override public long getPublishedBytes() { return _publishedBytes.sum(); }
+    @Override public long getPublishErrors() { return _publishErrors.sum(); }
+
+    @Override public long getRead() { return _read.sum(); }
+    @Override public long getReadBytes() { return _readBytes.sum(); }
+    @Override public long getEmptyPolls() { return _emptyPolls.sum(); }
+    @Override public long getReadErrors() { return _readErrors.sum(); }
+
+    @Override
+    public double getEmptyPollRatio() {
+        long empty = _emptyPolls.sum();
+        long polls = empty + _read.sum();
+        return (polls > 0 ? (double) empty / polls : 0);
+    }
+
+    @Override public long getConfirmAcks() { return _confirmAcks.sum(); }
+    @Override public long getConfirmNacks() { return _confirmNacks.sum(); }
+
+    @Override public boolean isBlocked() { return _blocked; }
+    @Override public long getBlockedEvents() { return _blockedEvents.sum(); }
+    @Override public long getUnblockedEvents() { return _unblockedEvents.sum(); }
+
+    @Override public long getSendLatencyP50() { return _sendLatency.getPercentile(50); }
+    @Override public long getSendLatencyP99() { return _sendLatency.getPercentile(99); }
+    @Override public long getSendLatencyMax() { return _sendLatency.getMax(); }
+
+    @Override public long getReadLatencyP50() { return _readLatency.getPercentile(50); }
+    @Override public long getReadLatencyP99() { return _readLatency.getPercentile(99); }
+    @Override public long getReadLatencyMax() { return _readLatency.getMax(); }
+
+    @Override public long getConfirmLatencyP50() { return _confirmLatency.getPercentile(50); }
+    @Override public long getConfirmLatencyP99() { return _confirmLatency.getPercentile(99); }
+    @Override public long getConfirmLatencyMax() { return _confirmLatency.getMax(); }
+
+    @Override
+    public void reset() {
+        _published.reset();
+        _publishedBytes.reset();
+        _publishErrors.reset();
+        _read.reset();
+        _readBytes.reset();
+        _emptyPolls.reset();
+        _readErrors.reset();
+        _confirmAcks.reset();
+        _confirmNacks.reset();
+        _blockedEvents.reset();
+        _unblockedEvents.reset();
+
+        _sendLatency.reset();
+        _readLatency.reset();
+        _confirmLatency.reset();
+    }
+
+    /// Return: String array by format "key=value", latencies are in microseconds
+    public String[] getStats() {
+        List<String> lstStats = new ArrayList<>(40);
+
+        lstStats.add("Published=" + getPublished());
+        lstStats.add("PublishedBytes=" + getPublishedBytes());
+        lstStats.add("PublishErrors=" + getPublishErrors());
+        lstStats.add("Read=" + getRead());
+        lstStats.add("ReadBytes=" + getReadBytes());
+        lstStats.add("EmptyPolls=" + getEmptyPolls());
+        lstStats.add("EmptyPollRatio=" + getEmptyPollRatio());
+        lstStats.add("ReadErrors=" + getReadErrors());
+        lstStats.add("ConfirmAcks=" + getConfirmAcks());
+        lstStats.add("ConfirmNacks=" + getConfirmNacks());
+        lstStats.add("Blocked=" + isBlocked());
+        if (isBlocked()) lstStats.add("BlockedReason=" + getBlockedReason());
+        lstStats.add("BlockedEvents=" + getBlockedEvents());
+        lstStats.add("UnblockedEvents=" + getUnblockedEvents());
+
+        addLatency(lstStats, "SendLatency", _sendLatency);
+        addLatency(lstStats, "ReadLatency", _readLatency);
+        addLatency(lstStats, "ConfirmLatency", _confirmLatency);
+
+        return lstStats.toArray(new String[0]);
+    }
+
+    /// Return: String rows by format "key=value"
+    public String statsToString() {
+        StringBuilder sbStats = new StringBuilder();
+        for (String stat : getStats()) sbStats.append(stat).append(NEW_LINE);
+
+        return sbStats.toString();
+    }
+
+    private static void addLatency(List<String> lstStats, String name, LatencyHistogram histogram) {
+        lstStats.add(name + "Count=" + histogram.getCount());
+        lstStats.add(name + "Mean=" + Math.round(histogram.getMean()));
+        lstStats.add(name + "P50=" + histogram.getPercentile(50));
+        lstStats.add(name + "P90=" + histogram.getPercentile(90));
+        lstStats.add(name + "P99=" + histogram.getPercentile(99));
+        lstStats.add(name + "P999=" + histogram.getPercentile(99.9));
+        lstStats.add(name + "Max=" + histogram.getMax());
+    }
+}
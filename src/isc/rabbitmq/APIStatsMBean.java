@@ -0,0 +1,36 @@
+package isc.rabbitmq;
+
+/// interface APIStatsMBean
+/// JMX view of API statistics, latencies are in microseconds
+public interface APIStatsMBean {
+    long getPublished();
+    long getPublishedBytes();
+    long getPublishErrors();
+
+    long getRead();
+    long getReadBytes();
+    long getEmptyPolls();
+    double getEmptyPollRatio();
+    long getReadErrors();
+
+    long getConfirmAcks();
+    long getConfirmNacks();
+
+    boolean isBlocked();
+    long getBlockedEvents();
+    long getUnblockedEvents();
+
+    long getSendLatencyP50();
+    long getSendLatencyP99();
+    long getSendLatencyMax();
+
+    long getReadLatencyP50();
+    long getReadLatencyP99();
+    long getReadLatencyMax();
+
+    long getConfirmLatencyP50();
+    long getConfirmLatencyP99();
+    long getConfirmLatencyMax();
+
+    void reset();
+}
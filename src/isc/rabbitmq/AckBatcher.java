@@ -0,0 +1,97 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/// class AckBatcher
+/// Collects acknowledgements of messages read with manual ack and sends them to broker by batches.
+/// Contiguous acknowledged delivery tags are sent by single basicAck(multiple = true).
+class AckBatcher {
+    private final Channel _channel;
+    private volatile int _batchSize;
+
+    // delivery tag -> true if message is acknowledged by application but ack is not sent yet
+    private final ConcurrentNavigableMap<Long, Boolean> _delivered;
+    private int _pending = 0;
+
+    /// Parameters: Channel channel, int batchSize - count of acks that causes flush (1 - send every ack at once)
+    AckBatcher(Channel channel, int batchSize) {
+        _channel = channel;
+        _batchSize = Math.max(1, batchSize);
+        _delivered = new ConcurrentSkipListMap<>();
+    }
+
+    /// Parameters: int batchSize - count of acks that causes flush
+    void setBatchSize(int batchSize) {
+        _batchSize = Math.max(1, batchSize);
+    }
+
+    /// Return: Channel acks are sent to, delivery tags are valid only for it
+    Channel getChannel() {
+        return _channel;
+    }
+
+    /// Register delivery tag of message delivered with manual ack
+    void delivered(long deliveryTag) {
+        _delivered.put(deliveryTag, Boolean.FALSE);
+    }
+
+    /// Ack message, sends acks to broker when batchSize acks are collected
+    synchronized void ack(long deliveryTag) throws IOException {
+        if (_delivered.replace(deliveryTag, Boolean.TRUE) == null) throw new IOException("Unknown delivery tag " + deliveryTag);
+
+        if (++_pending >= _batchSize) flush();
+    }
+
+    /// Ack all messages up to and including deliveryTag by single basicAck(multiple = true)
+    synchronized void ackUpTo(long deliveryTag) throws IOException {
+        _channel.basicAck(deliveryTag, true);
+
+        Map<Long, Boolean> acked = _delivered.headMap(deliveryTag, true);
+        for (Boolean item : acked.values()) if (item) _pending--;
+        acked.clear();
+    }
+
+    /// Reject message, it is sent to broker at once
+    synchronized void nack(long deliveryTag, boolean requeue) throws IOException {
+        Boolean acked = _delivered.remove(deliveryTag);
+        if (acked == null) throw new IOException("Unknown delivery tag " + deliveryTag);
+        if (acked) _pending--;
+
+        _channel.basicNack(deliveryTag, false, requeue);
+    }
+
+    /// Send collected acks to broker
+    synchronized void flush() throws IOException {
+        if (_pending == 0 || !_channel.isOpen()) return;
+
+        // longest run of acked tags from the oldest delivered message goes by one frame
+        long lastInRun = 0;
+        for (Map.Entry<Long, Boolean> item : _delivered.entrySet()) {
+            if (!item.getValue()) break;
+            lastInRun = item.getKey();
+        }
+
+        if (lastInRun > 0) {
+            _channel.basicAck(lastInRun, true);
+            _delivered.headMap(lastInRun, true).clear();
+        }
+
+        // acks after not acked message can't be joined
+        Iterator<Map.Entry<Long, Boolean>> it = _delivered.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Boolean> item = it.next();
+            if (!item.getValue()) continue;
+
+            _channel.basicAck(item.getKey(), false);
+            it.remove();
+        }
+
+        _pending = 0;
+    }
+}
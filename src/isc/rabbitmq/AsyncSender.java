@@ -0,0 +1,246 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// class AsyncSender
+/// Publishes messages by background I/O thread, caller gets ticket at once and checks outcome later.
+/// With confirms ticket is completed by publisher confirm of broker, without them after basicPublish.
+/// Completed tickets not taken by caller are forgotten after COMPLETED_TTL or when there are more than COMPLETED_LIMIT of them.
+class AsyncSender {
+    private static final long CONFIRM_WINDOW_TIMEOUT = 30000;
+    private static final int CONFIRM_WINDOW = 1000;
+    private static final int COMPLETED_LIMIT = 100000;
+    private static final long COMPLETED_TTL = TimeUnit.MINUTES.toNanos(5);
+
+    /// Message waiting for publish and its outcome
+    static class Ticket {
+        final long id;
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties props;
+        final byte[] body;
+        final long started;
+
+        // the first outcome wins, confirm may come after ticket failed by closed channel
+        private final AtomicBoolean _completed = new AtomicBoolean(false);
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile boolean _ok = false;
+        private volatile String _error = null;
+        private volatile long _completedAt = 0;
+
+        Ticket(long id, String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.id = id;
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+            this.started = System.nanoTime();
+        }
+
+        boolean isOk() {
+            return _ok;
+        }
+
+        String getError() {
+            return _error;
+        }
+
+        /// Return: true if ticket is completed before timeout (milliseconds)
+        boolean await(long timeout) throws InterruptedException {
+            return _done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Connection _connection;
+    private final boolean _confirms;
+    private final APIStats _stats;
+
+    private final AtomicLong _nextId = new AtomicLong(0);
+    private final BlockingQueue<Ticket> _queue;
+    private final Map<Long, Ticket> _tickets = new ConcurrentHashMap<>();
+    private final Queue<Ticket> _completed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _completedCount = new AtomicInteger(0);
+    private final AtomicInteger _pending = new AtomicInteger(0);
+
+    private final Thread _thread;
+    private volatile boolean _stopped = false;
+
+    /// Parameters: Connection connection, int capacity - maximum count of not published messages, boolean confirms, APIStats stats
+    AsyncSender(Connection connection, int capacity, boolean confirms, APIStats stats) {
+        _connection = connection;
+        _confirms = confirms;
+        _stats = stats;
+        _queue = new LinkedBlockingQueue<>(capacity);
+
+        _thread = new Thread(this::run, "API-async-sender");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /// Return: ticket id, message is published later by I/O thread
+    long send(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws Exception {
+        if (_stopped) throw new IllegalStateException("Async sender is stopped");
+
+        Ticket ticket = new Ticket(_nextId.incrementAndGet(), exchange, routingKey, props, body);
+        _tickets.put(ticket.id, ticket);
+        _pending.incrementAndGet();
+
+        if (!_queue.offer(ticket)) {
+            _tickets.remove(ticket.id);
+            _pending.decrementAndGet();
+            throw new IllegalStateException("Queue of async sender is full (" + _queue.size() + " messages)");
+        }
+
+        // stop could drain queue before ticket was added, then nobody would complete it
+        if (_stopped && _queue.remove(ticket)) {
+            _tickets.remove(ticket.id);
+            _pending.decrementAndGet();
+            throw new IllegalStateException("Async sender is stopped");
+        }
+
+        return ticket.id;
+    }
+
+    /// Return: Ticket or null if ticket is unknown or its outcome was already taken
+    Ticket getTicket(long id) {
+        return _tickets.get(id);
+    }
+
+    /// Forget completed ticket, its outcome is taken by caller
+    void remove(long id) {
+        _tickets.remove(id);
+    }
+
+    /// Return: completed tickets not taken yet, they are forgotten
+    List<Ticket> pollCompletions() {
+        List<Ticket> completed = new ArrayList<>();
+        for (Ticket ticket = _completed.poll(); ticket != null; ticket = _completed.poll()) {
+            _completedCount.decrementAndGet();
+
+            // ticket could be taken by awaitTicket already
+            if (_tickets.remove(ticket.id) != null) completed.add(ticket);
+        }
+
+        return completed;
+    }
+
+    /// Return: count of messages waiting for publish or confirm
+    int getPending() {
+        return _pending.get();
+    }
+
+    /// Stop I/O thread, messages not published yet are completed with error
+    void stop() {
+        _stopped = true;
+        _thread.interrupt();
+
+        try {
+            _thread.join(CONFIRM_WINDOW_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Ticket ticket = _queue.poll(); ticket != null; ticket = _queue.poll()) complete(ticket, false, "Async sender is stopped");
+    }
+
+    private void run() {
+        Channel channel = null;
+        ConfirmTracker tracker = null;
+
+        while (!_stopped) {
+            Ticket ticket;
+            try {
+                ticket = _queue.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            try {
+                if (channel == null || !channel.isOpen()) {
+                    channel = _connection.createChannel();
+
+                    if (_confirms) {
+                        final ConfirmTracker channelTracker = new ConfirmTracker(CONFIRM_WINDOW);
+                        channel.addConfirmListener(channelTracker);
+                        channel.addShutdownListener(cause -> channelTracker.failAll());
+                        channel.confirmSelect();
+                        tracker = channelTracker;
+                    }
+                }
+
+                if (_confirms) {
+                    if (!tracker.acquire(CONFIRM_WINDOW_TIMEOUT)) throw new IllegalStateException("Timeout waiting for publisher confirms, window is full");
+
+                    final Ticket confirmed = ticket;
+                    tracker.register(channel.getNextPublishSeqNo(), ack -> {
+                        _stats.confirmed(ack, System.nanoTime() - confirmed.started);
+                        complete(confirmed, ack, (ack ? null : "Message was rejected by broker"));
+                    });
+                }
+
+                channel.basicPublish(ticket.exchange, ticket.routingKey, ticket.props, ticket.body);
+                _stats.published(ticket.body.length, System.nanoTime() - ticket.started);
+
+                if (!_confirms) complete(ticket, true, null);
+            } catch (InterruptedException ex) {
+                complete(ticket, false, "Async sender is stopped");
+                break;
+            } catch (Exception ex) {
+                _stats.publishError();
+                complete(ticket, false, ex.getMessage());
+
+                try {
+                    if (channel != null && channel.isOpen()) channel.close();
+                } catch (Exception e) {}
+                channel = null;
+            }
+        }
+
+        try {
+            if (channel != null && channel.isOpen()) channel.close();
+        } catch (Exception ex) {}
+    }
+
+    private void complete(Ticket ticket, boolean ok, String error) {
+        if (!ticket._completed.compareAndSet(false, true)) return;
+
+        ticket._ok = ok;
+        ticket._error = (ok ? null : (error == null || error.isEmpty() ? "Undefined error" : error));
+        ticket._completedAt = System.nanoTime();
+        ticket._done.countDown();
+        _pending.decrementAndGet();
+
+        _completed.offer(ticket);
+        _completedCount.incrementAndGet();
+        evictCompleted(ticket._completedAt);
+    }
+
+    /// Forget the oldest completed tickets nobody asked for, so they don't grow without bound
+    private void evictCompleted(long now) {
+        for (Ticket oldest = _completed.peek(); oldest != null; oldest = _completed.peek()) {
+            if (_completedCount.get() <= COMPLETED_LIMIT && now - oldest._completedAt < COMPLETED_TTL) return;
+
+            // concurrent pollCompletions could take it first
+            if (!_completed.remove(oldest)) continue;
+
+            _completedCount.decrementAndGet();
+            _tickets.remove(oldest.id);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package isc.rabbitmq;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/// class BodyCompressor
+/// Compression of bodies by ContentEncoding gzip (RFC 1952) or deflate (zlib, RFC 1950).
+/// Deflater, Inflater and work buffer are kept per thread and reused, only result array is allocated per message.
+/// Work buffer grown above MAX_RETAINED_BUFFER by large body is dropped after use, so idle threads don't hold it.
+/// Decompressed size is limited by caller, body inflating above limit (decompression bomb) is rejected.
+final class BodyCompressor {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    // flags of gzip header
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int INITIAL_BUFFER = 8192;
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+    private static final long MAX_RATIO = 1032;
+
+    /// Compressors of thread, created on first use
+    private static class State {
+        Deflater gzipDeflater;
+        Deflater zlibDeflater;
+        Inflater gzipInflater;
+        Inflater zlibInflater;
+        final CRC32 crc = new CRC32();
+        byte[] buffer = new byte[INITIAL_BUFFER];
+
+        // buffer of at least size bytes, content is not kept
+        byte[] buffer(int size) {
+            if (buffer.length < size) buffer = new byte[Math.max(size, buffer.length * 2)];
+            return buffer;
+        }
+
+        // buffer of at least size bytes and at most limit bytes, content is kept
+        byte[] grow(int size, int limit) {
+            if (buffer.length < size) buffer = Arrays.copyOf(buffer, (int) Math.min(Math.max(size, buffer.length * 2L), limit));
+            return buffer;
+        }
+
+        // oversized buffer is not kept by thread
+        void release() {
+            if (buffer.length > MAX_RETAINED_BUFFER) buffer = new byte[INITIAL_BUFFER];
+        }
+    }
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+    private BodyCompressor() {}
+
+    /// Return: true if encoding is supported
+    static boolean isSupported(String encoding) {
+        return GZIP.equalsIgnoreCase(encoding) || DEFLATE.equalsIgnoreCase(encoding);
+    }
+
+    /// Parameters: String encoding - gzip or deflate, byte[] body, int offset, int length, int level - 1 (fast) .. 9 (best)
+    /// Return: compressed body
+    static byte[] compress(String encoding, byte[] body, int offset, int length, int level) {
+        State state = STATE.get();
+        boolean gzip = GZIP.equalsIgnoreCase(encoding);
+
+        Deflater deflater;
+        if (gzip) {
+            if (state.gzipDeflater == null) state.gzipDeflater = new Deflater(level, true);
+            deflater = state.gzipDeflater;
+        } else {
+            if (state.zlibDeflater == null) state.zlibDeflater = new Deflater(level, false);
+            deflater = state.zlibDeflater;
+        }
+
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(body, offset, length);
+        deflater.finish();
+
+        try {
+            return compress(state, deflater, gzip, body, offset, length);
+        } finally {
+            state.release();
+        }
+    }
+
+    private static byte[] compress(State state, Deflater deflater, boolean gzip, byte[] body, int offset, int length) {
+        // worst case of deflate is a few bytes per 16K block above input
+        byte[] buffer = state.buffer(length + length / 1000 + 64 + GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE);
+        int position = 0;
+
+        if (gzip) {
+            buffer[0] = (byte) GZIP_MAGIC;
+            buffer[1] = (byte) (GZIP_MAGIC >> 8);
+            buffer[2] = Deflater.DEFLATED;
+            Arrays.fill(buffer, 3, GZIP_HEADER_SIZE, (byte) 0);
+            position = GZIP_HEADER_SIZE;
+        }
+
+        while (!deflater.finished()) {
+            if (position == buffer.length) buffer = state.grow(buffer.length + 1, MAX_ARRAY);
+            position += deflater.deflate(buffer, position, buffer.length - position);
+        }
+
+        if (gzip) {
+            state.crc.reset();
+            state.crc.update(body, offset, length);
+
+            buffer = state.grow(position + GZIP_TRAILER_SIZE, MAX_ARRAY);
+            writeIntLE(buffer, position, (int) state.crc.getValue());
+            writeIntLE(buffer, position + 4, length);
+            position += GZIP_TRAILER_SIZE;
+        }
+
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /// Parameters: String encoding - gzip or deflate, byte[] body, int maxSize - maximum size of decompressed body in bytes
+    /// Return: decompressed body
+    static byte[] decompress(String encoding, byte[] body, int maxSize) throws IOException {
+        State state = STATE.get();
+        boolean gzip = GZIP.equalsIgnoreCase(encoding);
+
+        Inflater inflater;
+        int offset = 0;
+        int length = body.length;
+        int expected = -1;
+
+        if (gzip) {
+            if (state.gzipInflater == null) state.gzipInflater = new Inflater(true);
+            inflater = state.gzipInflater;
+
+            offset = gzipHeaderSize(body);
+            length = body.length - offset - GZIP_TRAILER_SIZE;
+            if (length < 0) throw new IOException("Body is not in gzip format");
+
+            // size of data modulo 2^32 from trailer, exact for bodies below 4 GB
+            expected = readIntLE(body, body.length - 4);
+            if (expected > maxSize) throw tooLarge(maxSize);
+        } else {
+            if (state.zlibInflater == null) state.zlibInflater = new Inflater(false);
+            inflater = state.zlibInflater;
+        }
+
+        inflater.reset();
+        inflater.setInput(body, offset, length);
+
+        try {
+            return inflate(state, inflater, gzip, body, length, expected, maxSize);
+        } finally {
+            state.release();
+        }
+    }
+
+    private static byte[] inflate(State state, Inflater inflater, boolean gzip, byte[] body, int length, int expected, int maxSize) throws IOException {
+        // one byte above maximum size tells that body is too large
+        int limit = (int) Math.min(maxSize + 1L, MAX_ARRAY);
+
+        // size from trailer is not trusted beyond maximum ratio of deflate
+        byte[] buffer = state.buffer((int) Math.min(expected >= 0 ? expected : length * 4L, Math.min(length * MAX_RATIO + INITIAL_BUFFER, limit)));
+        int position = 0;
+
+        try {
+            while (!inflater.finished()) {
+                if (position == buffer.length) {
+                    if (position >= limit) throw tooLarge(maxSize);
+                    buffer = state.grow(buffer.length + 1, limit);
+                }
+
+                int count = inflater.inflate(buffer, position, buffer.length - position);
+                if (count == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Compressed body is truncated");
+                position += count;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Compressed body is broken: " + ex.getMessage());
+        }
+
+        if (position > maxSize) throw tooLarge(maxSize);
+
+        if (gzip) {
+            state.crc.reset();
+            state.crc.update(buffer, 0, position);
+            if ((int) state.crc.getValue() != readIntLE(body, body.length - 8) || (expected >= 0 && position != expected)) throw new IOException("Checksum of gzip body is wrong");
+        }
+
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private static IOException tooLarge(int maxSize) {
+        return new IOException("Decompressed body is larger than " + maxSize + " bytes");
+    }
+
+    private static int gzipHeaderSize(byte[] body) throws IOException {
+        if (body.length < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE || (body[0] & 0xff | (body[1] & 0xff) << 8) != GZIP_MAGIC || body[2] != Deflater.DEFLATED) throw new IOException("Body is not in gzip format");
+
+        int flags = body[3] & 0xff;
+        int position = GZIP_HEADER_SIZE;
+
+        if ((flags & FEXTRA) != 0) {
+            if (position + 2 > body.length) throw new IOException("Body is not in gzip format");
+            position += 2 + (body[position] & 0xff | (body[position + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) position = skipZeroTerminated(body, position);
+        if ((flags & FCOMMENT) != 0) position = skipZeroTerminated(body, position);
+        if ((flags & FHCRC) != 0) position += 2;
+
+        if (position > body.length) throw new IOException("Body is not in gzip format");
+        return position;
+    }
+
+    private static int skipZeroTerminated(byte[] body, int position) throws IOException {
+        while (position < body.length && body[position] != 0) position++;
+        if (position == body.length) throw new IOException("Body is not in gzip format");
+
+        return position + 1;
+    }
+
+    private static void writeIntLE(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >> 8);
+        buffer[position + 2] = (byte) (value >> 16);
+        buffer[position + 3] = (byte) (value >> 24);
+    }
+
+    private static int readIntLE(byte[] buffer, int position) {
+        return (buffer[position] & 0xff) | (buffer[position + 1] & 0xff) << 8 | (buffer[position + 2] & 0xff) << 16 | (buffer[position + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,165 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.*;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/// class BufferedConsumer
+/// Consumer for messages pushed by broker (basicConsume) into bounded local buffer.
+/// Capacity of buffer is equal to prefetch (basicQos), so broker never pushes more messages than buffer can hold.
+/// Messages are acknowledged when they are taken from buffer, acks are sent by one frame for several messages.
+/// In manual ack mode delivery tags are registered in AckBatcher and application acknowledges messages itself.
+class BufferedConsumer extends DefaultConsumer implements DeliveryBuffer {
+    private final String _queue;
+    private final BlockingQueue<Delivery> _buffer;
+    private final long _readTimeout;
+    private final int _ackBatch;
+    private final AckBatcher _manualAck;
+
+    // guarded by this, several threads may read from one consumer
+    private long _lastTakenTag = 0;
+    private int _notAcked = 0;
+
+    private volatile ShutdownSignalException _shutdown = null;
+    private volatile boolean _cancelled = false;
+
+    // stopped consumer returns messages pushed after stop to queue
+    private volatile boolean _stopped = false;
+
+    // tag returned by basicConsume, getConsumerTag is set later by thread of consumer
+    private volatile String _consumerTag = null;
+
+    /// Parameters: Channel channel, String queue, int prefetch, long readTimeout (milliseconds), AckBatcher manualAck (null - ack on take)
+    BufferedConsumer(Channel channel, String queue, int prefetch, long readTimeout, AckBatcher manualAck) {
+        super(channel);
+
+        _queue = queue;
+        _manualAck = manualAck;
+        _buffer = new ArrayBlockingQueue<>(prefetch);
+        _readTimeout = readTimeout;
+        _ackBatch = Math.max(1, prefetch / 2);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        long deliveryTag = envelope.getDeliveryTag();
+        if (_manualAck != null) _manualAck.delivered(deliveryTag);
+
+        // broker does not push more than prefetch unacknowledged messages, so buffer is full only if
+        // prefetch was changed on channel; thread of connection must not block, so message is returned to queue
+        Delivery delivery = new Delivery(envelope, properties, body);
+        if (!_stopped && _buffer.offer(delivery)) {
+            // message pushed before cancel may come while stop takes not taken messages, it is returned by stop or here
+            if (!_stopped || !_buffer.remove(delivery)) return;
+        }
+
+        try {
+            if (_manualAck != null) {
+                _manualAck.nack(deliveryTag, true);
+            } else {
+                getChannel().basicNack(deliveryTag, false, true);
+            }
+        } catch (IOException | ShutdownSignalException ex) {
+            // channel is closed, broker returns not acked message to queue itself
+        }
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+        _cancelled = true;
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        _shutdown = sig;
+    }
+
+    /// Start consumer, channel must have basicQos set already
+    void start() throws IOException {
+        _consumerTag = getChannel().basicConsume(_queue, false, this);
+    }
+
+    /// Return: Delivery or null if buffer is empty after readTimeout
+    @Override
+    public Delivery take() throws Exception {
+        return take(_readTimeout);
+    }
+
+    /// Parameters: long timeout - milliseconds to wait when buffer is empty (0 - do not wait)
+    /// Return: Delivery or null if buffer is empty after timeout
+    @Override
+    public Delivery take(long timeout) throws Exception {
+        // acks collected by application are sent before waiting, otherwise broker may wait for them and push nothing
+        if (_manualAck != null && _buffer.isEmpty()) _manualAck.flush();
+
+        Delivery delivery = (timeout > 0 ? _buffer.poll(timeout, TimeUnit.MILLISECONDS) : _buffer.poll());
+
+        if (delivery == null) {
+            if (_shutdown != null) throw _shutdown;
+            if (_cancelled) throw new IOException("Consumer was cancelled by broker");
+            return null;
+        }
+
+        if (_manualAck != null) return delivery;
+
+        synchronized (this) {
+            _lastTakenTag = Math.max(_lastTakenTag, delivery.getEnvelope().getDeliveryTag());
+            _notAcked++;
+
+            // ack when buffer is empty too, otherwise broker stops pushing and reader waits for nothing
+            if (_notAcked >= _ackBatch || _buffer.isEmpty()) ackTaken();
+        }
+
+        return delivery;
+    }
+
+    /// Return: read timeout (milliseconds)
+    @Override
+    public long readTimeout() {
+        return _readTimeout;
+    }
+
+    /// Return: count of messages in local buffer
+    @Override
+    public int size() {
+        return _buffer.size();
+    }
+
+    @Override
+    public String queue(Delivery delivery) {
+        return _queue;
+    }
+
+    /// Cancel consumer, ack taken messages and return not taken messages to queue
+    @Override
+    public void stop() throws Exception {
+        String consumerTag = _consumerTag;
+        if (consumerTag != null && getChannel().isOpen() && _shutdown == null && !_cancelled) getChannel().basicCancel(consumerTag);
+        _stopped = true;
+
+        if (_manualAck != null) {
+            // taken messages may be not acked yet, so reject only not taken ones
+            for (Delivery delivery = _buffer.poll(); delivery != null; delivery = _buffer.poll()) {
+                if (getChannel().isOpen()) _manualAck.nack(delivery.getEnvelope().getDeliveryTag(), true);
+            }
+            return;
+        }
+
+        ackTaken();
+
+        long lastTag = 0;
+        for (Delivery delivery = _buffer.poll(); delivery != null; delivery = _buffer.poll()) lastTag = delivery.getEnvelope().getDeliveryTag();
+
+        if (lastTag > 0 && getChannel().isOpen()) getChannel().basicNack(lastTag, true, true);
+    }
+
+    private synchronized void ackTaken() throws IOException {
+        if (_notAcked == 0) return;
+
+        _notAcked = 0;
+        getChannel().basicAck(_lastTakenTag, true);
+    }
+}
@@ -0,0 +1,109 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/// class ChannelPool
+/// Bounded pool of channels of one connection, every thread takes own channel for the time of call.
+/// Checkout and checkin are lock-free, channels are created on demand up to size of pool.
+/// Channel must be returned to pool it was taken from, closed pool closes its channels as they are returned.
+class ChannelPool {
+    // pause while all channels are taken
+    private static final long WAIT_NANOS = 50000;
+
+    private final Connection _connection;
+    private final int _size;
+    private final long _timeout;
+
+    private final ConcurrentLinkedQueue<Channel> _idle;
+    private final AtomicInteger _created;
+    private volatile boolean _closed = false;
+
+    /// Parameters: Connection connection, int size - maximum count of channels, long timeout - milliseconds to wait for free channel
+    ChannelPool(Connection connection, int size, long timeout) {
+        _connection = connection;
+        _size = size;
+        _timeout = timeout;
+
+        _idle = new ConcurrentLinkedQueue<>();
+        _created = new AtomicInteger(0);
+    }
+
+    /// Return: free channel, it must be returned by checkin; null if pool is closed
+    Channel checkout() throws Exception {
+        long deadline = System.nanoTime() + _timeout * 1000000L;
+
+        while (!_closed) {
+            Channel channel = _idle.poll();
+            if (channel != null) {
+                if (channel.isOpen()) return channel;
+
+                // channel was closed by broker, its place is free
+                _created.decrementAndGet();
+                continue;
+            }
+
+            int created = _created.get();
+            if (created < _size) {
+                if (_created.compareAndSet(created, created + 1)) return createChannel();
+                continue;
+            }
+
+            if (System.nanoTime() - deadline > 0) throw new TimeoutException("There is no free channel in pool of " + _size + " channels");
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+
+        return null;
+    }
+
+    /// Parameters: Channel channel - taken by checkout
+    void checkin(Channel channel) {
+        if (!_closed && channel.isOpen()) {
+            _idle.offer(channel);
+
+            // pool was closed meanwhile and could miss this channel
+            if (_closed) closeIdle();
+            return;
+        }
+
+        _created.decrementAndGet();
+        closeChannel(channel);
+    }
+
+    /// Close all free channels, channels taken at the moment are closed on checkin
+    void close() {
+        _closed = true;
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        for (Channel channel = _idle.poll(); channel != null; channel = _idle.poll()) {
+            _created.decrementAndGet();
+            closeChannel(channel);
+        }
+    }
+
+    private Channel createChannel() throws Exception {
+        Channel channel = null;
+        try {
+            channel = _connection.createChannel();
+        } finally {
+            if (channel == null) _created.decrementAndGet();
+        }
+
+        if (channel == null) throw new IOException("Connection has no free channel numbers");
+        return channel;
+    }
+
+    private static void closeChannel(Channel channel) {
+        try {
+            if (channel.isOpen()) channel.close();
+        } catch ( Exception ex) {}
+    }
+}
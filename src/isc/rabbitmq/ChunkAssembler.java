@@ -0,0 +1,294 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/// class ChunkAssembler
+/// Reassembles large messages sent by chunks into temporary files, memory holds only one chunk and bitmap of received chunks.
+/// Every chunk is written at its own offset (sequence * chunk size), so chunks may come in any order and redelivered chunks are ignored.
+/// Last chunk carries count of chunks, length and CRC32 of content, transfer is complete when all chunks are received and checksum is right.
+/// Transfers without chunks for idleTimeout are dropped with their files.
+/// Ids of failed and dropped transfers are kept for a while, their later chunks are dropped instead of starting new transfers.
+class ChunkAssembler {
+    // headers of chunk
+    static final String ID = "x-chunk-id";
+    static final String SEQ = "x-chunk-seq";
+    static final String SIZE = "x-chunk-size";
+    static final String COUNT = "x-chunk-count";
+    static final String LENGTH = "x-chunk-length";
+    static final String CRC = "x-chunk-crc";
+
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    // failed transfer ids are kept for idleTimeout, but not shorter than FAILED_TTL milliseconds and not more than FAILED_LIMIT ids
+    private static final long FAILED_TTL = 60000;
+    private static final int FAILED_LIMIT = 10000;
+
+    /// Content of one large message
+    static class Transfer {
+        final String id;
+        final File file;
+        final int chunkSize;
+        final AMQP.BasicProperties props;
+        final String queue;
+
+        private final FileChannel _channel;
+        private final BitSet _received = new BitSet();
+        private boolean _redelivered = false;
+        private int _count = -1;
+        private long _length = -1;
+        private long _crc = 0;
+        private long _updated;
+
+        Transfer(String id, File file, int chunkSize, AMQP.BasicProperties props, String queue) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.chunkSize = chunkSize;
+            this.props = props;
+            this.queue = queue;
+
+            _channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
+            _updated = System.currentTimeMillis();
+        }
+
+        /// Return: count of chunks, -1 until last chunk is received
+        int getCount() {
+            return _count;
+        }
+
+        /// Return: length of content, -1 until last chunk is received
+        long getLength() {
+            return _length;
+        }
+
+        /// Return: true if some chunk was redelivered by broker
+        boolean isRedelivered() {
+            return _redelivered;
+        }
+
+        /// Close and delete file
+        void delete() {
+            try {
+                _channel.close();
+            } catch (IOException ex) {}
+
+            file.delete();
+        }
+
+        /// Return: description of missing chunks, null if last chunk is not received yet
+        String missing() {
+            if (_count < 0) return null;
+
+            StringBuilder missing = new StringBuilder();
+            int found = 0;
+            for (int seq = _received.nextClearBit(0); seq < _count; seq = _received.nextClearBit(seq + 1)) {
+                if (found++ < 10) missing.append(found > 1 ? "," : "").append(seq);
+            }
+            if (found > 10) missing.append(",... (").append(found).append(" chunks)");
+
+            return "Transfer " + id + " is missing chunks " + missing;
+        }
+    }
+
+    private final File _directory;
+    private final long _idleTimeout;
+
+    // transfer id -> not complete transfer, guarded by this
+    private final Map<String, Transfer> _transfers = new LinkedHashMap<>();
+
+    // transfer id -> time it failed or was dropped, in order of time, guarded by this
+    private final Map<String, Long> _failed = new LinkedHashMap<>();
+
+    /// Parameters: File directory - for temporary files (null - default temporary directory), long idleTimeout - milliseconds (0 - never dropped)
+    ChunkAssembler(File directory, long idleTimeout) {
+        _directory = directory;
+        _idleTimeout = idleTimeout;
+    }
+
+    /// Return: true if message is chunk of large message
+    static boolean isChunk(APIMessage message) {
+        return message.hasHeader(ID);
+    }
+
+    /// Return: true if chunk belongs to transfer that failed or was dropped recently, such chunk is not added
+    synchronized boolean isFailed(APIMessage chunk) throws Exception {
+        expire();
+
+        return _failed.containsKey(chunk.getHeader(ID));
+    }
+
+    /// Parameters: APIMessage chunk
+    /// Return: complete Transfer (its file is closed and not deleted), null if chunks are still expected
+    synchronized Transfer add(APIMessage chunk) throws Exception {
+        expire();
+
+        String id = chunk.getHeader(ID);
+        try {
+            return add(id, chunk);
+        } catch (Exception ex) {
+            fail(id, System.currentTimeMillis());
+            throw ex;
+        }
+    }
+
+    private Transfer add(String id, APIMessage chunk) throws Exception {
+        long seq = chunk.getHeaderLong(SEQ);
+        long size = chunk.getHeaderLong(SIZE);
+        int length = chunk.getBodyLength();
+
+        if (size <= 0 || size > Integer.MAX_VALUE) throw new IOException("Wrong size " + size + " of chunks of transfer " + id);
+        if (seq < 0 || seq >= Integer.MAX_VALUE) throw new IOException("Wrong sequence " + seq + " of chunk of transfer " + id);
+        if (length > size) throw new IOException("Chunk " + seq + " of transfer " + id + " is longer than size of chunks " + size);
+
+        Transfer transfer = _transfers.get(id);
+        if (transfer == null) {
+            File file = File.createTempFile("chunk-", ".part", _directory);
+            try {
+                transfer = new Transfer(id, file, (int) size, chunk.createProperties(), chunk.Queue);
+            } catch (IOException ex) {
+                file.delete();
+                throw ex;
+            }
+            _transfers.put(id, transfer);
+        }
+
+        try {
+            return add(transfer, chunk, (int) seq, length);
+        } catch (Exception ex) {
+            // content is not valid anymore, sender has to send it again
+            _transfers.remove(id);
+            transfer.delete();
+            throw ex;
+        }
+    }
+
+    private Transfer add(Transfer transfer, APIMessage chunk, int seq, int length) throws Exception {
+        if (chunk.getHeaderLong(SIZE) != transfer.chunkSize) throw new IOException("Chunk " + seq + " of transfer " + transfer.id + " has other size of chunks");
+
+        transfer._updated = System.currentTimeMillis();
+        if (chunk.Redelivered) transfer._redelivered = true;
+
+        if (chunk.hasHeader(COUNT)) {
+            transfer._count = (int) chunk.getHeaderLong(COUNT);
+            transfer._length = chunk.getHeaderLong(LENGTH);
+            transfer._crc = chunk.getHeaderLong(CRC);
+
+            if (transfer._count != seq + 1) throw new IOException("Last chunk " + seq + " of transfer " + transfer.id + " has count " + transfer._count);
+            if (transfer._length != (long) seq * transfer.chunkSize + length) throw new IOException("Length of transfer " + transfer.id + " does not match its chunks");
+        } else if (length != transfer.chunkSize) {
+            throw new IOException("Chunk " + seq + " of transfer " + transfer.id + " is shorter than size of chunks");
+        }
+
+        if (transfer._count >= 0 && seq >= transfer._count) throw new IOException("Chunk " + seq + " of transfer " + transfer.id + " is after last chunk " + (transfer._count - 1));
+
+        // redelivered chunk has the same content
+        if (!transfer._received.get(seq)) {
+            ByteBuffer body = chunk.getBodyBuffer();
+            long position = (long) seq * transfer.chunkSize;
+            while (body.hasRemaining()) position += transfer._channel.write(body, position);
+
+            transfer._received.set(seq);
+        }
+
+        if (transfer._count < 0 || transfer._received.cardinality() < transfer._count) return null;
+
+        _transfers.remove(transfer.id);
+        verify(transfer);
+
+        return transfer;
+    }
+
+    private static void verify(Transfer transfer) throws IOException {
+        try {
+            if (transfer._channel.size() != transfer._length) throw new IOException("Length of transfer " + transfer.id + " is " + transfer._channel.size() + " instead of " + transfer._length);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER);
+            long position = 0;
+            for (int read = transfer._channel.read(buffer, position); read > 0; read = transfer._channel.read(buffer, position)) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+                position += read;
+            }
+
+            if (crc.getValue() != transfer._crc) throw new IOException("Checksum of transfer " + transfer.id + " does not match");
+        } finally {
+            transfer._channel.close();
+        }
+    }
+
+    /// Return: descriptions of missing chunks of transfers whose last chunk is received, null if there are no such transfers
+    synchronized String missing() {
+        expire();
+
+        StringBuilder missing = new StringBuilder();
+        for (Transfer transfer : _transfers.values()) {
+            String item = transfer.missing();
+            if (item != null) missing.append(missing.length() > 0 ? "; " : "").append(item);
+        }
+
+        return (missing.length() > 0 ? missing.toString() : null);
+    }
+
+    /// Return: String array by format "id=received/count", count is ? until last chunk is received
+    synchronized String[] getTransfers() {
+        expire();
+
+        List<String> transfers = new ArrayList<>(_transfers.size());
+        for (Transfer transfer : _transfers.values()) {
+            transfers.add(transfer.id + "=" + transfer._received.cardinality() + "/" + (transfer._count >= 0 ? String.valueOf(transfer._count) : "?"));
+        }
+
+        return transfers.toArray(new String[0]);
+    }
+
+    /// Drop all not complete transfers and their files
+    synchronized void clear() {
+        for (Transfer transfer : _transfers.values()) transfer.delete();
+        _transfers.clear();
+        _failed.clear();
+    }
+
+    /// Drop transfers without chunks for idleTimeout and forget old failed ids
+    synchronized void expire() {
+        long now = System.currentTimeMillis();
+
+        if (_idleTimeout > 0) {
+            long expired = now - _idleTimeout;
+            for (Iterator<Transfer> it = _transfers.values().iterator(); it.hasNext(); ) {
+                Transfer transfer = it.next();
+                if (transfer._updated >= expired) continue;
+
+                transfer.delete();
+                it.remove();
+                fail(transfer.id, now);
+            }
+        }
+
+        long forgotten = now - Math.max(_idleTimeout, FAILED_TTL);
+        for (Iterator<Long> it = _failed.values().iterator(); it.hasNext(); ) {
+            if (it.next() >= forgotten && _failed.size() <= FAILED_LIMIT) break;
+            it.remove();
+        }
+    }
+
+    // guarded by this
+    private void fail(String id, long now) {
+        // id is moved to the end, so map stays in order of time
+        _failed.remove(id);
+        _failed.put(id, now);
+    }
+}
@@ -0,0 +1,102 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.ConfirmListener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/// class ConfirmTracker
+/// Tracks publisher confirms of confirm-enabled channel by sequence numbers of published messages.
+/// Window limits count of published and not yet confirmed messages.
+class ConfirmTracker implements ConfirmListener {
+
+    /// Called by connection thread when broker confirms (ack = true) or rejects (ack = false) message
+    interface Callback {
+        void confirmed(boolean ack);
+    }
+
+    private final ConcurrentNavigableMap<Long, Callback> _pending;
+    private final Semaphore _window;
+
+    /// Parameters: int window - maximum count of not confirmed messages
+    ConfirmTracker(int window) {
+        _pending = new ConcurrentSkipListMap<>();
+        _window = new Semaphore(window);
+    }
+
+    /// Take place in window before publish, waits up to timeout (milliseconds) while window is full
+    /// Return: false if window is still full after timeout
+    boolean acquire(long timeout) throws InterruptedException {
+        return _window.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /// Take place in window without waiting
+    /// Return: false if window is full
+    boolean tryAcquire() {
+        return _window.tryAcquire();
+    }
+
+    /// Give back place in window if message was not published
+    void release() {
+        _window.release();
+    }
+
+    /// Parameters: long seqNo - Channel.getNextPublishSeqNo() before basicPublish, Callback callback
+    void register(long seqNo, Callback callback) {
+        _pending.put(seqNo, callback);
+    }
+
+    /// Forget message that was registered but not published (basicPublish failed), its place in window is given back
+    /// Return: false if message is already confirmed or rejected, its place was given back then
+    boolean deregister(long seqNo) {
+        if (_pending.remove(seqNo) == null) return false;
+
+        _window.release();
+        return true;
+    }
+
+    /// Return: count of free places in window
+    int available() {
+        return _window.availablePermits();
+    }
+
+    /// Return: count of published and not confirmed messages
+    int outstanding() {
+        return _pending.size();
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        complete(deliveryTag, multiple, true);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        complete(deliveryTag, multiple, false);
+    }
+
+    /// Reject all not confirmed messages, used when channel is closed
+    void failAll() {
+        complete(Long.MAX_VALUE, true, false);
+    }
+
+    private void complete(long deliveryTag, boolean multiple, boolean ack) {
+        if (!multiple) {
+            Callback callback = _pending.remove(deliveryTag);
+            if (callback != null) confirm(callback, ack);
+            return;
+        }
+
+        for (Map.Entry<Long, Callback> item = _pending.firstEntry(); item != null && item.getKey() <= deliveryTag; item = _pending.firstEntry()) {
+            if (_pending.remove(item.getKey(), item.getValue())) confirm(item.getValue(), ack);
+        }
+    }
+
+    private void confirm(Callback callback, boolean ack) {
+        _window.release();
+        callback.confirmed(ack);
+    }
+}
@@ -0,0 +1,270 @@
+package isc.rabbitmq;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/// class DedupCache
+/// Set of recently seen MessageId values for detection of redelivered messages.
+/// Ids are kept as 64-bit fingerprints in open addressing table and in ring by time of arrival,
+/// so entry costs 24 bytes; the oldest entry is evicted when cache is full or older than ttl.
+/// Optional Bloom filter remembers ids evicted by capacity for one more ttl: hit only in it is probable duplicate.
+/// In manual ack mode id is remembered when message is acked, nacked message is not duplicate when it comes again.
+class DedupCache {
+    static final int NEW = 0;
+    static final int DUPLICATE = 1;
+    static final int PROBABLE = 2;
+
+    private final int _capacity;
+    private final long _ttl;
+
+    // ring of fingerprints by time of arrival, guarded by this
+    private final long[] _ringKeys;
+    private final long[] _ringTimes;
+    private int _head = 0;
+    private int _size = 0;
+
+    // open addressing table with linear probing, 0 - empty slot
+    private final long[] _table;
+    private final int _mask;
+
+    // two generations of Bloom filter, null - no filter
+    private long[] _bloom;
+    private long[] _bloomOld;
+    private final int _bloomHashes;
+    private int _bloomCount = 0;
+    private long _bloomStarted = 0;
+
+    // delivery tag -> fingerprint of message read with manual ack and not acked yet, guarded by this
+    private final TreeMap<Long, Long> _pending = new TreeMap<>();
+
+    private long _hits = 0;
+    private long _probableHits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+    private long _pendingDropped = 0;
+
+    /// Parameters: int capacity - maximum count of ids, long ttl - milliseconds id is remembered (0 - until evicted),
+    /// int bloomBits - size of every generation of Bloom filter (0 - no filter)
+    DedupCache(int capacity, long ttl, int bloomBits) {
+        _capacity = capacity;
+        _ttl = ttl;
+
+        _ringKeys = new long[capacity];
+        _ringTimes = new long[capacity];
+
+        // load factor of table is 0.5 at most
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+        _table = new long[tableSize];
+        _mask = tableSize - 1;
+
+        if (bloomBits > 0) {
+            int words = (bloomBits + 63) >>> 6;
+            _bloom = new long[words];
+            _bloomOld = new long[words];
+            _bloomHashes = Math.max(1, Math.min(16, (int) Math.round((double) words * 64 / capacity * Math.log(2))));
+        } else {
+            _bloomHashes = 0;
+        }
+    }
+
+    /// Check id and remember it, used when message is acked on read
+    /// Return: NEW, DUPLICATE or PROBABLE
+    synchronized int check(String messageId) {
+        return check(fingerprint(messageId), true);
+    }
+
+    /// Check id of message read with manual ack, it is remembered by acked
+    /// Return: NEW, DUPLICATE or PROBABLE
+    synchronized int checkPending(String messageId, long deliveryTag) {
+        long key = fingerprint(messageId);
+        int result = check(key, false);
+
+        // the oldest not acked read is forgotten, its message is not remembered when it is acked
+        _pending.put(deliveryTag, key);
+        if (_pending.size() > _capacity) {
+            _pending.pollFirstEntry();
+            _pendingDropped++;
+        }
+
+        return result;
+    }
+
+    /// Remember id of acked message
+    synchronized void acked(long deliveryTag) {
+        Long key = _pending.remove(deliveryTag);
+        if (key != null && !contains(key)) add(key, System.currentTimeMillis());
+    }
+
+    /// Remember ids of all messages up to and including deliveryTag
+    synchronized void ackedUpTo(long deliveryTag) {
+        Map<Long, Long> acked = _pending.headMap(deliveryTag, true);
+        long now = System.currentTimeMillis();
+        for (Long key : acked.values()) if (!contains(key)) add(key, now);
+        acked.clear();
+    }
+
+    /// Forget id of rejected message, it may come again
+    synchronized void rejected(long deliveryTag) {
+        _pending.remove(deliveryTag);
+    }
+
+    /// Forget not acked reads, delivery tags of closed channel are not valid anymore
+    synchronized void clearPending() {
+        _pending.clear();
+    }
+
+    /// Return: String array by format "key=value"
+    synchronized String[] getCounts() {
+        return new String[] {
+            "dedup.size=" + _size,
+            "dedup.capacity=" + _capacity,
+            "dedup.hits=" + _hits,
+            "dedup.probableHits=" + _probableHits,
+            "dedup.misses=" + _misses,
+            "dedup.evictions=" + _evictions,
+            "dedup.pending=" + _pending.size(),
+            "dedup.pendingDropped=" + _pendingDropped
+        };
+    }
+
+    // guarded by this
+    private int check(long key, boolean remember) {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        if (contains(key)) {
+            _hits++;
+            return DUPLICATE;
+        }
+
+        if (_bloom != null && bloomContains(key, now)) {
+            _probableHits++;
+            if (remember) add(key, now);
+            return PROBABLE;
+        }
+
+        _misses++;
+        if (remember) add(key, now);
+        return NEW;
+    }
+
+    private void add(long key, long now) {
+        if (_size == _capacity) {
+            long evicted = _ringKeys[_head];
+            remove(evicted);
+            _head = (_head + 1) % _capacity;
+            _size--;
+            _evictions++;
+
+            if (_bloom != null) bloomAdd(evicted, now);
+        }
+
+        int tail = (_head + _size) % _capacity;
+        _ringKeys[tail] = key;
+        _ringTimes[tail] = now;
+        _size++;
+
+        int slot = slot(key);
+        while (_table[slot] != 0) slot = (slot + 1) & _mask;
+        _table[slot] = key;
+    }
+
+    private void expire(long now) {
+        if (_ttl <= 0) return;
+
+        long expired = now - _ttl;
+        while (_size > 0 && _ringTimes[_head] < expired) {
+            remove(_ringKeys[_head]);
+            _head = (_head + 1) % _capacity;
+            _size--;
+        }
+    }
+
+    private boolean contains(long key) {
+        for (int slot = slot(key); _table[slot] != 0; slot = (slot + 1) & _mask) {
+            if (_table[slot] == key) return true;
+        }
+
+        return false;
+    }
+
+    private void remove(long key) {
+        int slot = slot(key);
+        while (_table[slot] != key) {
+            if (_table[slot] == 0) return;
+            slot = (slot + 1) & _mask;
+        }
+
+        // backward shift deletion keeps probe sequences without tombstones
+        for (int next = (slot + 1) & _mask; _table[next] != 0; next = (next + 1) & _mask) {
+            int home = slot(_table[next]);
+            if (((next - home) & _mask) >= ((next - slot) & _mask)) {
+                _table[slot] = _table[next];
+                slot = next;
+            }
+        }
+        _table[slot] = 0;
+    }
+
+    private int slot(long key) {
+        return (int) (key ^ (key >>> 32)) & _mask;
+    }
+
+    private void bloomAdd(long key, long now) {
+        // generation is full or its ids are older than ttl, previous generation is forgotten
+        if (_bloomCount >= _capacity || (_ttl > 0 && _bloomStarted < now - _ttl)) {
+            long[] old = _bloomOld;
+            _bloomOld = _bloom;
+            _bloom = old;
+            Arrays.fill(_bloom, 0);
+            _bloomCount = 0;
+            _bloomStarted = now;
+        }
+
+        int bits = _bloom.length << 6;
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32);
+        for (int i = 0; i < _bloomHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bits);
+            _bloom[bit >>> 6] |= 1L << bit;
+        }
+        _bloomCount++;
+    }
+
+    private boolean bloomContains(long key, long now) {
+        long expired = (_ttl > 0 ? now - _ttl : Long.MIN_VALUE);
+
+        // ids of previous generation were evicted before current one started
+        return (_bloomCount > 0 && bloomContains(_bloom, key)) || (_bloomStarted >= expired && bloomContains(_bloomOld, key));
+    }
+
+    private boolean bloomContains(long[] bloom, long key) {
+        int bits = bloom.length << 6;
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32);
+        for (int i = 0; i < _bloomHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bits);
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+
+        return true;
+    }
+
+    /// Return: 64-bit FNV-1a hash of id mixed by finalizer of MurmurHash3, never 0
+    private static long fingerprint(String messageId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash ^= messageId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb3fa34e83a53L;
+        hash ^= hash >>> 33;
+
+        return (hash != 0 ? hash : 1);
+    }
+}
@@ -0,0 +1,26 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.Delivery;
+
+/// interface DeliveryBuffer
+/// Local buffer of messages pushed by broker, readMessage takes messages from it instead of basicGet
+interface DeliveryBuffer {
+    /// Return: Delivery or null if buffer is empty after read timeout of buffer
+    Delivery take() throws Exception;
+
+    /// Parameters: long timeout - milliseconds to wait when buffer is empty (0 - do not wait)
+    /// Return: Delivery or null if buffer is empty after timeout
+    Delivery take(long timeout) throws Exception;
+
+    /// Return: milliseconds take() waits when buffer is empty
+    long readTimeout();
+
+    /// Return: count of messages in local buffer
+    int size();
+
+    /// Return: name of queue the delivery came from
+    String queue(Delivery delivery);
+
+    /// Cancel consumers, taken messages are acked (auto ack mode) and not taken ones are returned to queue
+    void stop() throws Exception;
+}
@@ -0,0 +1,134 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/// class Dispatcher
+/// Consumer that processes pushed messages in parallel by lanes: every lane is one thread,
+/// messages with the same key always go to the same lane, so they are handled in order of delivery.
+/// Message is acked after its handler returns, rejected if handler throws exception.
+class Dispatcher extends DefaultConsumer {
+    /// Conversion of delivery to APIMessage
+    interface Converter {
+        APIMessage convert(Envelope envelope, AMQP.BasicProperties props, byte[] body) throws Exception;
+    }
+
+    private final ExecutorService[] _lanes;
+    private final Function<APIMessage, String> _key;
+    private final APIMessageHandler _handler;
+    private final Converter _converter;
+    private final boolean _requeueOnError;
+    private final APIStats _stats;
+
+    private final AtomicInteger _pending = new AtomicInteger(0);
+    private String _consumerTag = null;
+
+    /// Parameters: Channel channel, int lanes, Function key - key of ordering (null - no ordering), APIMessageHandler handler,
+    /// Converter converter, boolean requeueOnError, APIStats stats
+    Dispatcher(Channel channel, int lanes, Function<APIMessage, String> key, APIMessageHandler handler, Converter converter, boolean requeueOnError, APIStats stats) {
+        super(channel);
+
+        _key = key;
+        _handler = handler;
+        _converter = converter;
+        _requeueOnError = requeueOnError;
+        _stats = stats;
+
+        _lanes = new ExecutorService[lanes];
+        for (int i = 0; i < lanes; i++) {
+            final String name = "API-dispatcher-" + i;
+            _lanes[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /// Start consuming of queue with manual acks
+    void start(String queue) throws IOException {
+        _consumerTag = getChannel().basicConsume(queue, false, this);
+    }
+
+    /// Return: count of messages delivered and not handled yet
+    int getPending() {
+        return _pending.get();
+    }
+
+    /// Cancel consumer and wait for handling of delivered messages
+    /// Parameters: long timeout - milliseconds
+    /// Return: true if all delivered messages are handled before timeout
+    boolean stop(long timeout) throws Exception {
+        try {
+            if (_consumerTag != null && getChannel().isOpen()) getChannel().basicCancel(_consumerTag);
+        } catch (Exception ex) {}
+
+        for (ExecutorService lane : _lanes) lane.shutdown();
+
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean done = true;
+        for (ExecutorService lane : _lanes) done &= lane.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+
+        // messages not acked are returned to queue by broker when channel is closed
+        for (ExecutorService lane : _lanes) lane.shutdownNow();
+        if (getChannel().isOpen()) getChannel().close();
+
+        return done;
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        final long deliveryTag = envelope.getDeliveryTag();
+
+        APIMessage message = null;
+        try {
+            message = _converter.convert(envelope, properties, body);
+        } catch (Exception ex) {
+            reject(deliveryTag);
+            return;
+        }
+
+        // messages without key are not ordered and are spread over lanes
+        String key = (_key != null ? _key.apply(message) : null);
+        int hash = (key != null ? key.hashCode() : Long.hashCode(deliveryTag));
+        ExecutorService lane = _lanes[Math.floorMod(hash ^ (hash >>> 16), _lanes.length)];
+
+        final APIMessage delivered = message;
+        _pending.incrementAndGet();
+        _stats.read(body.length);
+
+        try {
+            lane.execute(() -> {
+                try {
+                    _handler.handle(delivered);
+                    getChannel().basicAck(deliveryTag, false);
+                } catch (Exception ex) {
+                    reject(deliveryTag);
+                } finally {
+                    _pending.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // dispatcher is stopped, message is returned to queue when channel is closed
+            _pending.decrementAndGet();
+        }
+    }
+
+    private void reject(long deliveryTag) {
+        _stats.readError();
+
+        try {
+            getChannel().basicNack(deliveryTag, false, _requeueOnError);
+        } catch (Exception ex) {}
+    }
+}
@@ -0,0 +1,92 @@
+package isc.rabbitmq;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/// class LatencyHistogram
+/// Histogram of latencies in microseconds with log-linear buckets (like HdrHistogram):
+/// values below 16 are exact, above them every power of two is split into 16 buckets, so error is below 1/16.
+/// Buckets are striped LongAdder counters, recording from many threads does not contend.
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final LongAdder[] _buckets;
+    private final LongAdder _count;
+    private final LongAdder _sum;
+
+    LatencyHistogram() {
+        _buckets = new LongAdder[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) _buckets[i] = new LongAdder();
+
+        _count = new LongAdder();
+        _sum = new LongAdder();
+    }
+
+    /// Parameters: long nanos - latency in nanoseconds
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+
+        _buckets[index(micros)].increment();
+        _count.increment();
+        _sum.add(micros);
+    }
+
+    /// Return: count of recorded values
+    long getCount() {
+        return _count.sum();
+    }
+
+    /// Return: mean latency in microseconds
+    double getMean() {
+        long count = _count.sum();
+        return (count > 0 ? (double) _sum.sum() / count : 0);
+    }
+
+    /// Parameters: double percentile - from 0 to 100
+    /// Return: latency in microseconds (upper bound of bucket), 0 if nothing was recorded
+    long getPercentile(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) total += (counts[i] = _buckets[i].sum());
+
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upperBound(i);
+        }
+
+        return upperBound(BUCKET_COUNT - 1);
+    }
+
+    /// Return: maximum latency in microseconds (upper bound of bucket)
+    long getMax() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) if (_buckets[i].sum() > 0) return upperBound(i);
+
+        return 0;
+    }
+
+    void reset() {
+        for (LongAdder bucket : _buckets) bucket.reset();
+        _count.reset();
+        _sum.reset();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+
+        int shift = index / SUB_COUNT - 1;
+        long sub = index % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,462 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/// class MessageSpool
+/// Durable local spool of sent messages: append-only segment files mapped to memory.
+/// Send returns after message is appended to segment, background forwarder publishes messages with
+/// publisher confirms and deletes segments when all their messages are confirmed.
+/// Confirmed position is kept in header of segment, so messages survive restart of JVM (at-least-once).
+/// Pages of mapped files are written by OS after crash of JVM too, but they are forced to disk only when segment is full,
+/// on close and by forwarder every second: spool survives crash of JVM, crash of OS may lose messages of last second.
+/// Record which can't be decoded (damaged or written by other version) is moved to quarantine file and skipped.
+/// Segment file with damaged header is renamed to name.spool.bad and skipped, so it doesn't stop spool.
+class MessageSpool {
+    private static final int MAGIC = 0x53504F4C;
+    private static final byte RECORD_VERSION = 1;
+    private static final String SUFFIX = ".spool";
+    private static final String QUARANTINE = "quarantine.bad";
+    private static final String BAD_SUFFIX = ".bad";
+
+    // segment header: int magic, int reserved, long confirmed position
+    private static final int HEADER_SIZE = 16;
+    private static final int CONFIRMED_POSITION = 8;
+
+    // record header: int length of record (0 - end of records), int crc32 of record
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int FORWARD_BATCH = 256;
+    private static final long CONFIRM_TIMEOUT = 30000;
+    private static final long RETRY_INTERVAL = 1000;
+    private static final long FORCE_INTERVAL = 1000;
+
+    /// Segment file mapped to memory
+    private static class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        // end of written records, guarded by _lock for writing
+        volatile int writePosition;
+
+        // end of confirmed records, used by forwarder only
+        int confirmedPosition;
+
+        // end of records forced to disk, used by forwarder only
+        int forcedPosition;
+
+        // no more records are appended
+        volatile boolean sealed = false;
+
+        Segment(long id, File file, MappedByteBuffer buffer, int confirmedPosition, int writePosition) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.confirmedPosition = confirmedPosition;
+            this.writePosition = writePosition;
+            this.forcedPosition = writePosition;
+        }
+    }
+
+    private final File _directory;
+    private final int _segmentSize;
+    private final Connection _connection;
+
+    // segments from oldest to newest, messages are appended to the last one
+    private final Object _lock = new Object();
+    private final Deque<Segment> _segments;
+    private Segment _writeSegment;
+
+    private final AtomicLong _count;
+    private final AtomicLong _quarantined = new AtomicLong(0);
+    private volatile String _quarantineReason = "";
+    private final Thread _forwarder;
+    private volatile boolean _closed = false;
+
+    // time of last force of written records, used by forwarder only
+    private long _forced = 0;
+
+    /// Parameters: String directory, int segmentSize - size of segment file in bytes, Connection connection
+    /// Segments left by previous run are opened and their not confirmed messages are forwarded again
+    MessageSpool(String directory, int segmentSize, Connection connection) throws IOException {
+        _directory = new File(directory);
+        _segmentSize = segmentSize;
+        _connection = connection;
+        _segments = new ArrayDeque<>();
+        _count = new AtomicLong(0);
+
+        if (!_directory.isDirectory() && !_directory.mkdirs()) throw new IOException("Can't create spool directory " + directory);
+        if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE) throw new IllegalArgumentException("Size of segment is too small");
+
+        open();
+
+        _forwarder = new Thread(this::forward, "API-spool-forwarder");
+        _forwarder.setDaemon(true);
+        _forwarder.start();
+    }
+
+    /// Return: count of messages in spool not confirmed by broker
+    long getCount() {
+        return _count.get();
+    }
+
+    /// Return: String array by format "spool.key=value": not confirmed messages, quarantined records and segment files and reason of last quarantine
+    String[] getCounts() {
+        return new String[] {
+            "spool.count=" + _count.get(),
+            "spool.quarantined=" + _quarantined.get(),
+            "spool.quarantineReason=" + _quarantineReason
+        };
+    }
+
+    /// Append message to spool, it is published by forwarder later
+    void append(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_VERSION);
+        out.writeUTF(exchange);
+        out.writeUTF(routingKey);
+        APIMessageCodec.writeProperties(out, props);
+        APIMessageCodec.writeBody(out, body);
+        out.flush();
+
+        byte[] record = bytes.toByteArray();
+        int size = RECORD_HEADER_SIZE + record.length;
+        if (HEADER_SIZE + size > _segmentSize) throw new IOException("Message is larger than segment of spool (" + _segmentSize + " bytes)");
+
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        synchronized (_lock) {
+            if (_closed) throw new IOException("Spool is closed");
+
+            if (_writeSegment.writePosition + size > _segmentSize) {
+                _writeSegment.sealed = true;
+                _writeSegment.buffer.force();
+
+                _writeSegment = createSegment(_writeSegment.id + 1);
+                _segments.addLast(_writeSegment);
+            }
+
+            Segment segment = _writeSegment;
+            int position = segment.writePosition;
+
+            // length is written last, record becomes visible only when it is complete
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.put(record);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.putInt(position, record.length);
+
+            segment.writePosition = position + size;
+            _count.incrementAndGet();
+
+            _lock.notifyAll();
+        }
+    }
+
+    /// Stop forwarder, flush segments to disk and unmap them, not confirmed messages are forwarded after next start
+    void close() {
+        synchronized (_lock) {
+            _closed = true;
+            _lock.notifyAll();
+        }
+
+        try {
+            _forwarder.join(CONFIRM_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (_lock) {
+            for (Segment segment : _segments) segment.buffer.force();
+
+            // access to unmapped buffer crashes JVM, segments of forwarder still waiting for confirms are left to garbage collector
+            if (_forwarder.isAlive()) return;
+
+            for (Segment segment : _segments) unmap(segment.buffer);
+            _segments.clear();
+        }
+    }
+
+    private void open() throws IOException {
+        File[] files = _directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) files = new File[0];
+
+        // names are zero padded ids, so order of names is order of segments
+        Arrays.sort(files);
+
+        long lastId = 0;
+        for (File file : files) {
+            Segment segment = openSegment(file);
+            if (segment == null) continue;
+
+            lastId = Math.max(lastId, segment.id);
+
+            // old segments are never appended, new messages go to new segment
+            segment.sealed = true;
+
+            // confirmed segment could be not deleted because it was mapped (Windows)
+            if (segment.confirmedPosition >= segment.writePosition) {
+                unmap(segment.buffer);
+                file.delete();
+                continue;
+            }
+
+            _segments.addLast(segment);
+        }
+
+        _writeSegment = createSegment(lastId + 1);
+        _segments.addLast(_writeSegment);
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        File file = new File(_directory, String.format("%020d", id) + SUFFIX);
+
+        MappedByteBuffer buffer = map(file, _segmentSize);
+        buffer.putInt(0, MAGIC);
+        buffer.putLong(CONFIRMED_POSITION, HEADER_SIZE);
+        buffer.putInt(HEADER_SIZE, 0);
+
+        return new Segment(id, file, buffer, HEADER_SIZE, HEADER_SIZE);
+    }
+
+    /// Return: Segment or null if file is not a segment, such file is moved to quarantine
+    private Segment openSegment(File file) throws IOException {
+        String name = file.getName();
+        long id;
+        try {
+            id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            quarantine(file, "name is not id of segment");
+            return null;
+        }
+
+        MappedByteBuffer buffer = map(file, (int) file.length());
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            unmap(buffer);
+            quarantine(file, "not a spool segment");
+            return null;
+        }
+
+        long confirmedPosition = buffer.getLong(CONFIRMED_POSITION);
+        if (confirmedPosition < HEADER_SIZE || confirmedPosition > buffer.capacity()) {
+            unmap(buffer);
+            quarantine(file, "confirmed position " + confirmedPosition + " is out of segment");
+            return null;
+        }
+
+        int confirmed = (int) confirmedPosition;
+
+        // find end of complete records, record broken by crash of JVM is dropped
+        int position = confirmed;
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()) break;
+
+            byte[] record = new byte[length];
+            ByteBuffer data = buffer.duplicate();
+            data.position(position + RECORD_HEADER_SIZE);
+            data.get(record);
+
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+
+            position += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+
+        _count.addAndGet(count);
+        return new Segment(id, file, buffer, confirmed, position);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // mapping stays valid after channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /// Release mapping at once instead of at garbage collection, so memory and file of deleted segment are freed (file may be deleted on Windows too)
+    /// Buffer must not be used after unmap
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (NoSuchMethodException ex) {
+            // Java 8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (Exception e) {}
+        } catch (Exception ex) {
+            // mapping is released by garbage collector
+        }
+    }
+
+    /// Force records written since last force to disk, at most every FORCE_INTERVAL, called by forwarder
+    private void forceWritten() {
+        long now = System.currentTimeMillis();
+        if (now - _forced < FORCE_INTERVAL) return;
+        _forced = now;
+
+        Segment segment;
+        int position;
+        synchronized (_lock) {
+            segment = _writeSegment;
+            position = segment.writePosition;
+        }
+
+        // full segments are forced when they are sealed
+        if (position > segment.forcedPosition) {
+            segment.buffer.force();
+            segment.forcedPosition = position;
+        }
+    }
+
+    /// Rename file which is not a segment, so it is skipped by next start too and kept for inspection, and remember reason
+    private void quarantine(File file, String reason) {
+        _quarantined.incrementAndGet();
+        _quarantineReason = "File " + file.getName() + ": " + reason;
+
+        // file is skipped even if it can't be renamed, it is quarantined again by next start
+        if (!file.renameTo(new File(_directory, file.getName() + BAD_SUFFIX))) _quarantineReason += " (not renamed)";
+    }
+
+    /// Append record which can't be decoded to quarantine file and remember reason, forwarder skips it
+    private void quarantine(Segment segment, byte[] record, Exception reason) {
+        _quarantined.incrementAndGet();
+        _quarantineReason = "Record of " + segment.file.getName() + ": " + reason;
+
+        // record is skipped even if it can't be saved, otherwise it blocks spool forever
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(_directory, QUARANTINE), true))) {
+            out.writeInt(record.length);
+            out.write(record);
+        } catch (IOException ex) {
+            _quarantineReason += " (not saved: " + ex.getMessage() + ")";
+        }
+    }
+
+    /// Forwarder thread: publishes records of oldest segment by batches and waits for confirms of every batch
+    private void forward() {
+        Channel channel = null;
+
+        while (!_closed) {
+            try {
+                forceWritten();
+
+                Segment segment;
+                synchronized (_lock) {
+                    segment = _segments.peekFirst();
+
+                    if (segment.confirmedPosition >= segment.writePosition) {
+                        if (segment.sealed && segment != _writeSegment) {
+                            // segment is fully confirmed, appender never uses sealed segment
+                            _segments.pollFirst();
+                            unmap(segment.buffer);
+                            segment.file.delete();
+                        } else {
+                            _lock.wait(RETRY_INTERVAL);
+                        }
+                        continue;
+                    }
+                }
+
+                if (channel == null || !channel.isOpen()) {
+                    channel = _connection.createChannel();
+                    channel.confirmSelect();
+                }
+
+                int position = segment.confirmedPosition;
+                int end = segment.writePosition;
+                int count = 0;
+
+                while (position < end && count < FORWARD_BATCH) {
+                    int length = segment.buffer.getInt(position);
+
+                    byte[] record = new byte[length];
+                    ByteBuffer data = segment.buffer.duplicate();
+                    data.position(position + RECORD_HEADER_SIZE);
+                    data.get(record);
+
+                    position += RECORD_HEADER_SIZE + length;
+                    count++;
+
+                    String exchange;
+                    String routingKey;
+                    AMQP.BasicProperties props;
+                    byte[] body;
+                    try {
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                        byte version = in.readByte();
+                        if (version != RECORD_VERSION) throw new IOException("Unknown version " + version + " of spool record");
+                        exchange = in.readUTF();
+                        routingKey = in.readUTF();
+                        props = APIMessageCodec.readProperties(in);
+                        body = APIMessageCodec.readBody(in);
+                    } catch (Exception ex) {
+                        // confirmed position skips it together with batch
+                        quarantine(segment, record, ex);
+                        continue;
+                    }
+
+                    channel.basicPublish(exchange, routingKey, props, body);
+                }
+
+                // channel is closed if any message is rejected, batch is published again on new channel
+                channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT);
+
+                segment.confirmedPosition = position;
+                segment.buffer.putLong(CONFIRMED_POSITION, position);
+                _count.addAndGet(-count);
+            } catch (InterruptedException ex) {
+                break;
+            } catch (Exception ex) {
+                // broker is not available, try again later
+                try {
+                    if (channel != null && channel.isOpen()) channel.close();
+                } catch (Exception e) {}
+                channel = null;
+
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        try {
+            if (channel != null && channel.isOpen()) channel.close();
+        } catch (Exception ex) {}
+    }
+}
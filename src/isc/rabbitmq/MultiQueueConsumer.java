@@ -0,0 +1,267 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// class MultiQueueConsumer
+/// Consumer for several queues over one channel, messages pushed by broker are merged into one ready buffer.
+/// Every queue has its own lane, take chooses lane by smooth weighted round-robin (fair share by weights)
+/// or by strict priority (first queue with messages in order of subscription).
+/// Prefetch (basicQos) is applied to every consumer, so lane never holds more than prefetch messages.
+/// Messages are acknowledged when they are taken from buffer, in manual ack mode application acknowledges them itself.
+class MultiQueueConsumer implements DeliveryBuffer {
+
+    /// Delivery with name of queue it came from
+    private static class QueueDelivery extends Delivery {
+        final String queue;
+
+        QueueDelivery(String queue, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            super(envelope, properties, body);
+            this.queue = queue;
+        }
+    }
+
+    /// Messages of one queue waiting for take
+    private class Lane extends DefaultConsumer {
+        final String queue;
+        final int weight;
+        final ArrayDeque<Delivery> buffer = new ArrayDeque<>();
+
+        // guarded by _lock
+        int current = 0;
+        long taken = 0;
+
+        // tag returned by basicConsume, getConsumerTag is set later by thread of consumer
+        volatile String tag = null;
+        volatile boolean cancelled = false;
+
+        Lane(Channel channel, String queue, int weight) {
+            super(channel);
+
+            this.queue = queue;
+            this.weight = weight;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            _acks.delivered(envelope.getDeliveryTag());
+
+            _lock.lock();
+            try {
+                if (!_stopped) {
+                    buffer.add(new QueueDelivery(queue, envelope, properties, body));
+                    _size++;
+                    _notEmpty.signal();
+                    return;
+                }
+            } finally {
+                _lock.unlock();
+            }
+
+            // message was pushed before cancel and came after stop took not taken messages
+            try {
+                _acks.nack(envelope.getDeliveryTag(), true);
+            } catch (IOException | ShutdownSignalException ex) {
+                // channel is closed, broker returns not acked message to queue itself
+            }
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            cancelled = true;
+            wakeUp();
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            _shutdown = sig;
+            wakeUp();
+        }
+    }
+
+    private final Channel _channel;
+    private final List<Lane> _lanes;
+    private final boolean _priority;
+    private final long _readTimeout;
+    private final boolean _manual;
+    private final AckBatcher _acks;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+
+    // guarded by _lock, stopped consumer returns messages pushed after stop to queue
+    private int _size = 0;
+    private boolean _stopped = false;
+
+    private volatile ShutdownSignalException _shutdown = null;
+
+    /// Parameters: Channel channel, String[] queues, int[] weights (null - equal weights), boolean priority - strict priority by order of queues,
+    /// int prefetch - per queue, long readTimeout (milliseconds), AckBatcher manualAck (null - ack on take)
+    MultiQueueConsumer(Channel channel, String[] queues, int[] weights, boolean priority, int prefetch, long readTimeout, AckBatcher manualAck) {
+        _channel = channel;
+        _priority = priority;
+        _readTimeout = readTimeout;
+        _manual = (manualAck != null);
+        _acks = (manualAck != null ? manualAck : new AckBatcher(channel, Math.max(1, prefetch / 2)));
+
+        _lanes = new ArrayList<>(queues.length);
+        for (int i = 0; i < queues.length; i++) _lanes.add(new Lane(channel, queues[i], (weights != null ? weights[i] : 1)));
+    }
+
+    /// Start consumers of all queues, channel must have basicQos set already
+    void start() throws IOException {
+        for (Lane lane : _lanes) lane.tag = _channel.basicConsume(lane.queue, false, lane);
+    }
+
+    @Override
+    public Delivery take() throws Exception {
+        return take(_readTimeout);
+    }
+
+    @Override
+    public Delivery take(long timeout) throws Exception {
+        // acks collected by application are sent before waiting, otherwise broker may wait for them and push nothing
+        if (_manual && size() == 0) _acks.flush();
+
+        Delivery delivery;
+        boolean empty;
+
+        _lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+            while (_size == 0) {
+                if (_shutdown != null) throw _shutdown;
+                if (allCancelled()) throw new IOException("Consumers were cancelled by broker");
+                if (nanos <= 0) return null;
+
+                nanos = _notEmpty.awaitNanos(nanos);
+            }
+
+            Lane lane = next();
+            delivery = lane.buffer.poll();
+            lane.taken++;
+            empty = (--_size == 0);
+        } finally {
+            _lock.unlock();
+        }
+
+        if (_manual) return delivery;
+
+        _acks.ack(delivery.getEnvelope().getDeliveryTag());
+
+        // ack when buffer is empty too, otherwise broker stops pushing and reader waits for nothing
+        if (empty) _acks.flush();
+
+        return delivery;
+    }
+
+    @Override
+    public long readTimeout() {
+        return _readTimeout;
+    }
+
+    @Override
+    public int size() {
+        _lock.lock();
+        try {
+            return _size;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public String queue(Delivery delivery) {
+        return ((QueueDelivery) delivery).queue;
+    }
+
+    /// Return: String array by format "queue.key=value": weight, taken and buffered messages of every queue
+    String[] getCounts() {
+        List<String> counts = new ArrayList<>(_lanes.size() * 3);
+
+        _lock.lock();
+        try {
+            for (Lane lane : _lanes) {
+                counts.add(lane.queue + ".weight=" + lane.weight);
+                counts.add(lane.queue + ".taken=" + lane.taken);
+                counts.add(lane.queue + ".buffered=" + lane.buffer.size());
+            }
+        } finally {
+            _lock.unlock();
+        }
+
+        return counts.toArray(new String[0]);
+    }
+
+    /// Cancel consumers, ack taken messages and return not taken messages to queues
+    @Override
+    public void stop() throws Exception {
+        for (Lane lane : _lanes) {
+            String consumerTag = lane.tag;
+            if (consumerTag != null && _channel.isOpen() && _shutdown == null && !lane.cancelled) _channel.basicCancel(consumerTag);
+        }
+
+        if (!_manual) _acks.flush();
+
+        List<Delivery> left = new ArrayList<>();
+        _lock.lock();
+        try {
+            for (Lane lane : _lanes) {
+                left.addAll(lane.buffer);
+                lane.buffer.clear();
+            }
+            _size = 0;
+            _stopped = true;
+        } finally {
+            _lock.unlock();
+        }
+
+        // lanes are interleaved by delivery tags, so not taken messages are rejected one by one
+        for (Delivery delivery : left) {
+            if (_channel.isOpen()) _acks.nack(delivery.getEnvelope().getDeliveryTag(), true);
+        }
+    }
+
+    /// Return: lane to take next message from, called under _lock when buffer is not empty
+    private Lane next() {
+        if (_priority) {
+            for (Lane lane : _lanes) if (!lane.buffer.isEmpty()) return lane;
+        }
+
+        // smooth weighted round-robin (as nginx upstreams): lanes get their share without bursts, empty lanes are skipped
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : _lanes) {
+            if (lane.buffer.isEmpty()) continue;
+
+            lane.current += lane.weight;
+            total += lane.weight;
+            if (best == null || lane.current > best.current) best = lane;
+        }
+
+        best.current -= total;
+        return best;
+    }
+
+    private boolean allCancelled() {
+        for (Lane lane : _lanes) if (!lane.cancelled) return false;
+
+        return true;
+    }
+
+    private void wakeUp() {
+        _lock.lock();
+        try {
+            _notEmpty.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+}
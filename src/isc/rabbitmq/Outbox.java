@@ -0,0 +1,125 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/// class Outbox
+/// Bounded in-memory queue of messages sent while connection is down.
+/// Messages are published in the same order by background thread after connection is recovered.
+class Outbox {
+
+    /// Message waiting for publish
+    static class Entry {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties props;
+        final byte[] body;
+
+        Entry(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    /// Publishes entry, throws exception if connection is down again
+    interface Publisher {
+        void publish(Entry entry) throws Exception;
+    }
+
+    private final BlockingQueue<Entry> _entries;
+    private final Publisher _publisher;
+    private final ExecutorService _replayer;
+    private final AtomicBoolean _scheduled;
+
+    // held while one message is published, so close waits for it and replay does not take messages after close
+    private final Object _replayLock = new Object();
+    private boolean _closed = false;
+
+    /// Parameters: int capacity - maximum count of messages, Publisher publisher
+    Outbox(int capacity, Publisher publisher) {
+        _entries = new LinkedBlockingQueue<>(capacity);
+        _publisher = publisher;
+        _scheduled = new AtomicBoolean(false);
+
+        _replayer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "API-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /// Return: false if outbox is full
+    boolean offer(Entry entry) {
+        return _entries.offer(entry);
+    }
+
+    /// Return: first waiting message or null, used to move messages to another outbox
+    Entry poll() {
+        return _entries.poll();
+    }
+
+    boolean isEmpty() {
+        return _entries.isEmpty();
+    }
+
+    /// Return: count of messages waiting for publish
+    int size() {
+        return _entries.size();
+    }
+
+    /// Start publishing of waiting messages by background thread, does nothing if it is already started
+    void replay() {
+        if (_entries.isEmpty() || !_scheduled.compareAndSet(false, true)) return;
+
+        try {
+            _replayer.execute(this::publishAll);
+        } catch (Exception ex) {
+            // outbox is closed
+            _scheduled.set(false);
+        }
+    }
+
+    /// Stop background thread, waits for message being published; waiting messages are kept for poll
+    void close() {
+        synchronized (_replayLock) {
+            _closed = true;
+        }
+
+        _replayer.shutdown();
+    }
+
+    private void publishAll() {
+        boolean failed = false;
+        try {
+            while (publishNext()) {}
+        } catch (Exception ex) {
+            // connection is down again, replay starts after next recovery
+            failed = true;
+        } finally {
+            _scheduled.set(false);
+        }
+
+        // message could be added after loop had finished
+        if (!failed) replay();
+    }
+
+    /// Return: false if outbox is empty or closed
+    private boolean publishNext() throws Exception {
+        synchronized (_replayLock) {
+            Entry entry = _entries.peek();
+            if (entry == null || _closed) return false;
+
+            // message is removed only after it is published, so it is not lost when connection fails again
+            _publisher.publish(entry);
+            _entries.poll();
+            return true;
+        }
+    }
+}
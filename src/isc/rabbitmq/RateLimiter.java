@@ -0,0 +1,57 @@
+package isc.rabbitmq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// class RateLimiter
+/// Token bucket of rate messages per second with capacity of burst messages.
+/// Bucket is kept as one time of next free token (GCRA), so take of token is one CAS without locks.
+class RateLimiter {
+    private final long _interval;
+    private final long _tolerance;
+
+    // theoretical time (nanoTime) when bucket becomes full again
+    private final AtomicLong _next;
+
+    /// Parameters: double rate - messages per second, int burst - messages sent at once after idle time
+    RateLimiter(double rate, int burst) {
+        if (rate <= 0) throw new IllegalArgumentException("Rate must be greater than 0");
+
+        _interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        _tolerance = _interval * (Math.max(burst, 1) - 1);
+        _next = new AtomicLong(System.nanoTime());
+    }
+
+    /// Return: true if token is taken, false if bucket is empty
+    boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long next = _next.get();
+            long start = Math.max(next, now);
+
+            if (start - now > _tolerance) return false;
+            if (_next.compareAndSet(next, start + _interval)) return true;
+        }
+    }
+
+    /// Return: true if token is available now, token is not taken
+    boolean canAcquire() {
+        long now = System.nanoTime();
+        return Math.max(_next.get(), now) - now <= _tolerance;
+    }
+
+    /// Take token, waits while bucket is empty
+    void acquire() throws InterruptedException {
+        long now = System.nanoTime();
+        long next;
+        long start;
+        do {
+            next = _next.get();
+            start = Math.max(next, now);
+        } while (!_next.compareAndSet(next, start + _interval));
+
+        // token is reserved, wait for its time
+        long wait = start - now - _tolerance;
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
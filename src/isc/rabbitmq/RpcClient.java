@@ -0,0 +1,194 @@
+package isc.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// class RpcClient
+/// Request/reply over Direct Reply-to: requests are published with ReplyTo amq.rabbitmq.reply-to and unique CorrelationId,
+/// replies are consumed without ack on the same channel and matched with pending calls by map of correlation ids.
+/// Timeouts of pending calls are driven by timer wheel, so many calls can be in flight on one channel.
+class RpcClient {
+    static final String REPLY_TO = "amq.rabbitmq.reply-to";
+
+    // tick of timer wheel (milliseconds) and count of its buckets
+    private static final long TIMER_TICK = 10;
+    private static final int TIMER_SIZE = 512;
+
+    /// Pending call and its reply
+    static class Call {
+        final long id;
+        final String correlationId;
+        final long started;
+
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile TimerWheel.Timeout _timeout = null;
+        private volatile Envelope _envelope = null;
+        private volatile AMQP.BasicProperties _props = null;
+        private volatile byte[] _body = null;
+        private volatile String _error = null;
+
+        Call(long id, String correlationId) {
+            this.id = id;
+            this.correlationId = correlationId;
+            this.started = System.nanoTime();
+        }
+
+        Envelope getEnvelope() {
+            return _envelope;
+        }
+
+        AMQP.BasicProperties getProps() {
+            return _props;
+        }
+
+        byte[] getBody() {
+            return _body;
+        }
+
+        /// Return: error of call, null if reply is received
+        String getError() {
+            return _error;
+        }
+
+        /// Return: true if call is completed before timeout (milliseconds)
+        boolean await(long timeout) throws InterruptedException {
+            return _done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Connection _connection;
+    private final TimerWheel _timer;
+
+    // prefix of correlation ids is unique for client, counter makes them unique for calls
+    private final String _prefix = UUID.randomUUID().toString() + "-";
+    private final AtomicLong _nextId = new AtomicLong(0);
+
+    private final Map<String, Call> _pending = new ConcurrentHashMap<>();
+    private final Map<Long, Call> _calls = new ConcurrentHashMap<>();
+
+    // channel with reply consumer, replaced after it is closed
+    private final Object _lock = new Object();
+    private Channel _channel = null;
+    private volatile boolean _closed = false;
+
+    /// Parameters: Connection connection
+    RpcClient(Connection connection) {
+        _connection = connection;
+        _timer = new TimerWheel("API-rpc-timer", TIMER_TICK, TIMER_SIZE);
+    }
+
+    /// Publish request, CorrelationId and ReplyTo of properties are replaced
+    /// Parameters: String exchange, String routingKey, AMQP.BasicProperties props, byte[] body, long timeout - milliseconds
+    /// Return: Call completed by reply or error
+    Call call(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body, long timeout) throws Exception {
+        if (_closed) throw new IllegalStateException("RPC client is closed");
+
+        long id = _nextId.incrementAndGet();
+        Call call = new Call(id, _prefix + id);
+        AMQP.BasicProperties request = props.builder().correlationId(call.correlationId).replyTo(REPLY_TO).build();
+
+        _pending.put(call.correlationId, call);
+        _calls.put(id, call);
+        call._timeout = _timer.schedule(() -> complete(call, null, null, null, "Timeout waiting for reply"), timeout);
+
+        try {
+            synchronized (_lock) {
+                channel().basicPublish(exchange, routingKey, request, body);
+            }
+        } catch (Exception ex) {
+            complete(call, null, null, null, ex.getMessage());
+            throw ex;
+        }
+
+        return call;
+    }
+
+    /// Return: Call or null if call is unknown or its reply was already taken
+    Call getCall(long id) {
+        return _calls.get(id);
+    }
+
+    /// Forget call, reply received later is dropped
+    void remove(long id) {
+        Call call = _calls.remove(id);
+        if (call != null) complete(call, null, null, null, "Call is cancelled");
+    }
+
+    /// Return: count of calls waiting for reply
+    int getPending() {
+        return _pending.size();
+    }
+
+    /// Close channel, pending calls are completed with error
+    void close() {
+        _closed = true;
+
+        synchronized (_lock) {
+            try {
+                if (_channel != null && _channel.isOpen()) _channel.close();
+            } catch (Exception ex) {}
+            _channel = null;
+        }
+
+        failAll("RPC client is closed");
+        _timer.stop();
+    }
+
+    // guarded by _lock
+    private Channel channel() throws IOException {
+        if (_channel != null && _channel.isOpen()) return _channel;
+
+        Channel channel = _connection.createChannel();
+        channel.addShutdownListener(cause -> failAll("Channel of replies is closed: " + cause.getMessage()));
+
+        // consumer of Direct Reply-to must be started before requests are published, replies are not acked
+        channel.basicConsume(REPLY_TO, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                String correlationId = properties.getCorrelationId();
+                Call call = (correlationId != null ? _pending.get(correlationId) : null);
+
+                // late reply of call completed by timeout is dropped
+                if (call != null) complete(call, envelope, properties, body, null);
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                failAll("Channel of replies is closed: " + sig.getMessage());
+            }
+        });
+
+        _channel = channel;
+        return channel;
+    }
+
+    private void failAll(String error) {
+        for (Call call : _pending.values()) complete(call, null, null, null, error);
+    }
+
+    private void complete(Call call, Envelope envelope, AMQP.BasicProperties props, byte[] body, String error) {
+        // only first completion wins: reply, timeout, error or cancel
+        if (_pending.remove(call.correlationId) == null) return;
+
+        TimerWheel.Timeout timeout = call._timeout;
+        if (timeout != null) timeout.cancel();
+
+        call._envelope = envelope;
+        call._props = props;
+        call._body = body;
+        call._error = (envelope != null ? null : (error == null || error.isEmpty() ? "Undefined error" : error));
+        call._done.countDown();
+    }
+}
@@ -0,0 +1,122 @@
+package isc.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/// class TimerWheel
+/// Hashed timer wheel for many short timeouts: schedule and cancel are O(1) and do not take locks.
+/// Timeouts fire on wheel thread with precision of one tick, tasks must be short and must not block.
+class TimerWheel {
+    /// Scheduled task, cancel before deadline prevents its run
+    static class Timeout {
+        private final Runnable _task;
+        private final long _deadline;
+        private long _rounds;
+        private volatile boolean _cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        void cancel() {
+            _cancelled = true;
+        }
+    }
+
+    private final long _tick;
+    private final int _mask;
+
+    // buckets are used by wheel thread only, new timeouts come through _pending
+    private final List<List<Timeout>> _buckets;
+    private final Queue<Timeout> _pending = new ConcurrentLinkedQueue<>();
+
+    private final long _started;
+    private long _currentTick = 0;
+
+    private final Thread _thread;
+    private volatile boolean _stopped = false;
+
+    /// Parameters: String name - name of thread, long tick - milliseconds, int wheelSize - count of buckets (rounded up to power of two)
+    TimerWheel(String name, long tick, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+
+        _tick = Math.max(tick, 1);
+        _mask = size - 1;
+        _buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) _buckets.add(new ArrayList<>());
+
+        _started = System.nanoTime();
+
+        _thread = new Thread(this::run, name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /// Parameters: Runnable task, long delay - milliseconds
+    Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, elapsed() + Math.max(delay, 0));
+        _pending.offer(timeout);
+
+        return timeout;
+    }
+
+    /// Stop wheel thread, scheduled tasks are not run
+    void stop() {
+        _stopped = true;
+        _thread.interrupt();
+    }
+
+    // milliseconds since start of wheel
+    private long elapsed() {
+        return (System.nanoTime() - _started) / 1000000;
+    }
+
+    private void run() {
+        while (!_stopped) {
+            long wait = (_currentTick + 1) * _tick - elapsed();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+
+            _currentTick++;
+            transferPending();
+            expire(_buckets.get((int) (_currentTick & _mask)));
+        }
+    }
+
+    private void transferPending() {
+        for (Timeout timeout = _pending.poll(); timeout != null; timeout = _pending.poll()) {
+            if (timeout._cancelled) continue;
+
+            // timeout already passed goes to current bucket
+            long ticks = Math.max((timeout._deadline + _tick - 1) / _tick, _currentTick);
+            timeout._rounds = (ticks - _currentTick) / _buckets.size();
+            _buckets.get((int) (ticks & _mask)).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        for (Iterator<Timeout> i = bucket.iterator(); i.hasNext(); ) {
+            Timeout timeout = i.next();
+
+            if (timeout._cancelled) {
+                i.remove();
+            } else if (timeout._rounds <= 0) {
+                i.remove();
+                try {
+                    timeout._task.run();
+                } catch (Exception ex) {}
+            } else {
+                timeout._rounds--;
+            }
+        }
+    }
+}